@@ -1,26 +1,90 @@
 package application;
 
 import bot.GeoPalBot;
+import exceptions.ApiKeyException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.BotSession;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
+import utils.ConfigLoader;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.Base64;
 
 /**
- * Entry point for bot application
+ * Entry point for bot application. Updates are received by long polling, or by the {@link WebhookServer}
+ * if "webhook" is selected as UPDATES_RECEIVER in the configuration.
  * */
 public class Application {
     public static void main(String[] args) {
         Logger logger = LoggerFactory.getLogger(Application.class);
         try {
             GeoPalBot bot = new GeoPalBot();
-            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-            botsApi.registerBot(bot);
+            String receiver = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.UPDATES_RECEIVER);
+            Closeable updates;
+            if (receiver.equalsIgnoreCase("webhook")) {
+                updates = startWebhook(bot);
+            } else {
+                TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+                BotSession session = botsApi.registerBot(bot);
+                updates = session::stop;
+            }
+            // updates stop coming before the bot is stopped, so everything they started is finished
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    updates.close();
+                } catch (IOException e) {
+                    logger.error("Stopping receiving updates failed! {}", e.getMessage());
+                }
+                bot.shutdown();
+            }));
         } catch (Exception e) {
             logger.error("Application start failed: {}", e.getMessage());
         }
     }
+
+    /**
+     * Starts the webhook server and points the webhook of the bot to it
+     *
+     * @return started webhook server
+     */
+    private static WebhookServer startWebhook(GeoPalBot bot) throws IOException {
+        String url = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.WEBHOOK_URL);
+        if (url.isEmpty()) {
+            throw new ApiKeyException(ConfigLoader.ConfigProperty.WEBHOOK_URL + " was not provided in config!");
+        }
+        String secret = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.WEBHOOK_SECRET);
+        if (secret.isEmpty()) {
+            // Telegram accepts only letters, digits, "_" and "-" in the secret
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            secret = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        }
+        // abilities are registered when the bot is registered for long polling, which is not done for webhook
+        bot.onRegister();
+        WebhookServer server = new WebhookServer(
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.WEBHOOK_PORT, 8080),
+                URI.create(url).getPath(),
+                secret,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.WEBHOOK_QUEUE_CAPACITY, 1000),
+                bot::onUpdateReceived);
+        try {
+            WebhookServer.registerWebhook(bot.getBotToken(), url, secret,
+                    ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.WEBHOOK_MAX_CONNECTIONS, 40));
+        } catch (IOException | RuntimeException e) {
+            // selector thread of the server would keep the application running without a webhook
+            try {
+                server.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        return server;
+    }
 }
@@ -0,0 +1,417 @@
+package application;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Minimal HTTP server receiving the updates from Telegram webhook. Connections are served by a single NIO selector
+ * thread, which only checks the requests and queues their bodies. Bodies are decoded into {@link Update}s and handed
+ * to the handler by a single thread, so updates are handled in the order they came. If the queue is full the request
+ * is answered with 503 and Telegram delivers the update again later.
+ * <p>
+ * Queued updates were already acknowledged to Telegram, which will not deliver them again, so {@link #close()}
+ * stops accepting requests first and then waits until every queued update is handed to the handler.
+ * <p>
+ * Server speaks plain HTTP, Telegram requires HTTPS, so it is expected to run behind a TLS terminating proxy.
+ */
+public class WebhookServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookServer.class);
+    private static final String SECRET_HEADER = "x-telegram-bot-api-secret-token";
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    // marker stopping the decoder once the updates queued before it are handled, compared by identity
+    private static final byte[] STOP = new byte[0];
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader updateReader = objectMapper.readerFor(Update.class);
+
+    private final String path;
+    private final byte[] secret;
+    private final Consumer<Update> handler;
+    private final BlockingQueue<byte[]> updates;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final Thread decoderThread;
+    private volatile boolean closed;
+
+    /**
+     * State of a single client connection, used only by the selector thread
+     */
+    private static final class Connection {
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer output;
+        private boolean closeAfterWrite;
+    }
+
+    /**
+     * Request parsed from the input of a connection
+     */
+    private record Request(String method, String path, Map<String, String> headers, byte[] body) {
+    }
+
+    /**
+     * Thrown if request can't be parsed, connection is answered with the status and closed
+     */
+    private static final class BadRequestException extends Exception {
+        private final int status;
+
+        private BadRequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Binds the server and starts receiving the updates
+     *
+     * @param port          port the server listens on
+     * @param path          path of the webhook, requests to other paths are answered with 404
+     * @param secret        secret token Telegram sends with every update, requests without it are answered with 403
+     * @param queueCapacity max amount of received updates waiting to be handled
+     * @param handler       handler of the updates
+     * @throws IOException if server could not be bound
+     */
+    public WebhookServer(int port, String path, String secret, int queueCapacity, Consumer<Update> handler)
+            throws IOException {
+        this.path = path;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.handler = handler;
+        this.updates = new ArrayBlockingQueue<>(queueCapacity);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(this::serve, "webhook-selector");
+        decoderThread = new Thread(this::decode, "webhook-decoder");
+        decoderThread.setDaemon(true);
+        selectorThread.start();
+        decoderThread.start();
+        logger.info("Webhook server listening on port {}", port);
+    }
+
+    /**
+     * Tells Telegram to deliver the updates of the bot to the webhook
+     *
+     * @param botToken       token of the bot
+     * @param url            public HTTPS url of the webhook
+     * @param secret         secret token sent with every update
+     * @param maxConnections max amount of concurrent connections Telegram opens to the webhook
+     * @throws IOException if Telegram did not accept the webhook
+     */
+    public static void registerWebhook(String botToken, String url, String secret, int maxConnections)
+            throws IOException {
+        String form = "url=" + URLEncoder.encode(url, StandardCharsets.UTF_8)
+                + "&secret_token=" + URLEncoder.encode(secret, StandardCharsets.UTF_8)
+                + "&max_connections=" + maxConnections;
+        HttpRequest request = HttpRequest.newBuilder(URI.create("https://api.telegram.org/bot" + botToken + "/setWebhook"))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        try {
+            HttpResponse<byte[]> response = HttpClient.newHttpClient()
+                    .send(request, HttpResponse.BodyHandlers.ofByteArray());
+            JsonNode result = objectMapper.readTree(response.body());
+            if (!result.path("ok").asBoolean()) {
+                throw new IOException("Setting webhook failed: " + result.path("description").asText());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Setting webhook was interrupted", e);
+        }
+        logger.info("Webhook set to {}", url);
+    }
+
+    private void serve() {
+        try {
+            serveUntilClosed();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Closing webhook selector failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void serveUntilClosed() {
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Webhook connection failed: {}", e.getMessage());
+                        closeConnection(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                logger.error("Webhook server failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (!connection.input.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(connection.input.capacity() * 2, MAX_HEADER_SIZE + MAX_BODY_SIZE));
+            connection.input.flip();
+            larger.put(connection.input);
+            connection.input = larger;
+        }
+        if (channel.read(connection.input) < 0) {
+            closeConnection(key);
+            return;
+        }
+        Request request;
+        try {
+            request = parse(connection.input);
+        } catch (BadRequestException e) {
+            logger.warn("Bad webhook request: {}", e.getMessage());
+            respond(key, connection, e.status, true);
+            return;
+        }
+        if (request != null) {
+            boolean close = "close".equalsIgnoreCase(request.headers().get("connection"));
+            respond(key, connection, handle(request), close);
+        }
+    }
+
+    /**
+     * Parses a complete request from the input and removes it from there
+     *
+     * @return request, or {@code null} if the request was not fully received yet
+     */
+    private static Request parse(ByteBuffer input) throws BadRequestException {
+        byte[] data = input.array();
+        int length = input.position();
+        int headerEnd = indexOf(data, length, HEADER_END);
+        if (headerEnd < 0) {
+            if (length > MAX_HEADER_SIZE) {
+                throw new BadRequestException(431, "Request header is too large");
+            }
+            return null;
+        }
+        String[] lines = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            throw new BadRequestException(400, "Invalid request line");
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        if (headers.containsKey("transfer-encoding")) {
+            throw new BadRequestException(411, "Only requests with Content-Length are supported");
+        }
+        int contentLength;
+        try {
+            contentLength = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException(400, "Invalid Content-Length");
+        }
+        if (contentLength < 0 || contentLength > MAX_BODY_SIZE) {
+            throw new BadRequestException(413, "Request body is too large");
+        }
+        int bodyStart = headerEnd + HEADER_END.length;
+        if (length - bodyStart < contentLength) {
+            return null;
+        }
+        byte[] body = new byte[contentLength];
+        System.arraycopy(data, bodyStart, body, 0, contentLength);
+        // keeps the bytes of the next pipelined request
+        input.flip();
+        input.position(bodyStart + contentLength);
+        input.compact();
+        return new Request(requestLine[0], requestLine[1], headers, body);
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return HTTP status of the response to the request
+     */
+    private int handle(Request request) {
+        if (!request.path().equals(path)) {
+            return 404;
+        }
+        if (!request.method().equals("POST")) {
+            return 405;
+        }
+        String token = request.headers().get(SECRET_HEADER);
+        // constant time comparison, so the secret can't be guessed from the response times
+        if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+            return 403;
+        }
+        if (!updates.offer(request.body())) {
+            logger.warn("Webhook queue is full, update will be redelivered by Telegram");
+            return 503;
+        }
+        return 200;
+    }
+
+    private void respond(SelectionKey key, Connection connection, int status, boolean close) {
+        String response = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Length: 0\r\n"
+                + (close ? "Connection: close\r\n" : "")
+                + "\r\n";
+        connection.output = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+        connection.closeAfterWrite = close;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private static String reason(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 411 -> "Length Required";
+            case 413 -> "Payload Too Large";
+            case 431 -> "Request Header Fields Too Large";
+            case 503 -> "Service Unavailable";
+            default -> "Error";
+        };
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(connection.output);
+        if (connection.output.hasRemaining()) {
+            return;
+        }
+        if (connection.closeAfterWrite) {
+            closeConnection(key);
+            return;
+        }
+        connection.output = null;
+        key.interestOps(SelectionKey.OP_READ);
+        // next request might be already fully received
+        if (connection.input.position() > 0) {
+            read(key);
+        }
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.debug("Closing webhook connection failed: {}", e.getMessage());
+        }
+    }
+
+    private void decode() {
+        while (true) {
+            byte[] body;
+            try {
+                body = updates.take();
+            } catch (InterruptedException e) {
+                logger.error("Webhook decoder was interrupted, {} queued updates are not handled!", updates.size());
+                return;
+            }
+            if (body == STOP) {
+                return;
+            }
+            try {
+                Update update = updateReader.readValue(body);
+                handler.accept(update);
+            } catch (IOException e) {
+                logger.error("Decoding webhook update failed: {}", e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error("Handling webhook update failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops receiving the updates and returns once the updates that were already received are handed to the handler
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        // no new connections, selector thread closes the open ones and stops, so no more updates are queued
+        serverChannel.close();
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            updates.put(STOP);
+            decoderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over the received updates");
+        }
+    }
+}
@@ -9,26 +9,40 @@ import org.jetbrains.annotations.NotNull;
 import org.telegram.abilitybots.api.bot.AbilityBot;
 import org.telegram.abilitybots.api.objects.*;
 import org.telegram.telegrambots.meta.api.objects.*;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import services.LocationFinder;
 import utils.ConfigLoader;
 import utils.Constants;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Predicate;
 
 import static org.telegram.abilitybots.api.objects.Locality.USER;
+import static org.telegram.abilitybots.api.objects.Privacy.CREATOR;
 import static org.telegram.abilitybots.api.objects.Privacy.PUBLIC;
 import static org.telegram.abilitybots.api.util.AbilityUtils.getChatId;
 
 public class GeoPalBot extends AbilityBot {
     public static final Logger logger = LoggerFactory.getLogger(GeoPalBot.class);
     private static long CREATOR_ID;
+    private static final String FRIEND_REQUEST_EXPIRED = "Friend request has expired! Please start again with /add_friend";
+    // how long shutdown waits for every stage to finish its work
+    private static final long SHUTDOWN_STAGE_TIMEOUT_MILLIS = 10_000;
 
     private final GeoUserStorage userStorage;
     private final ResponseHandler responseHandler;
-    public Map<Long, OngoingFriendRequest> ongoingFriendRequests = new HashMap<>();
+    private final MessageFanOut fanOut;
+    private final Outbox outbox;
+    private final LocationSharingPipeline locationSharingPipeline;
+    private final LiveLocationSharing liveLocationSharing;
+    private final UpdateDispatcher updateDispatcher;
+    private final CallbackRouter callbackRouter;
+    private final FriendListView friendListView;
+    // sender id to his unfinished /add_friend flow, abandoned flows expire
+    private final ExpiringStore<Long, OngoingFriendRequest> ongoingFriendRequests;
+    // friend requests waiting for the answer of the receiver, unanswered requests expire
+    private final ExpiringStore<GeoUser.FriendRequest, GeoUser.FriendRequest> pendingFriendRequests;
 
     /**
      * Constructor for the LocationSharingBot
@@ -49,8 +63,57 @@ public class GeoPalBot extends AbilityBot {
         } catch (NumberFormatException e) {
             throw new ApiKeyException("Bot configuration is incorrect, please check config.properties!");
         }
-        responseHandler = new ResponseHandler(sender, silent, db);
-        userStorage = new GeoUserStorage();
+        ThreadMode threadMode = ThreadMode.of(ConfigLoader.getProperty(ConfigLoader.ConfigProperty.THREAD_MODE));
+        fanOut = new MessageFanOut(sender,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.DELIVERY_THREADS, 8),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.TELEGRAM_GLOBAL_RATE_LIMIT, 30),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.TELEGRAM_PER_CHAT_RATE_LIMIT, 1),
+                threadMode);
+        String storageDirectory = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.STORAGE_DIRECTORY);
+        outbox = new Outbox(Path.of(storageDirectory.isEmpty() ? "data" : storageDirectory), fanOut,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.OUTBOX_THREADS, 4),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.OUTBOX_MAX_ATTEMPTS, 20),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.OUTBOX_MAX_BACKOFF_SECONDS, 300) * 1000L,
+                threadMode);
+        outbox.start();
+        responseHandler = new ResponseHandler(sender, silent, db, fanOut, outbox);
+        userStorage = createUserStorage();
+        friendListView = new FriendListView(userStorage,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.FRIEND_LIST_CACHE_SIZE, 1000));
+        ongoingFriendRequests = new ExpiringStore<>("friend-request-flows",
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.FRIEND_REQUEST_FLOW_TTL_MINUTES, 30) * 60_000L,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.FRIEND_REQUEST_FLOW_MAX_SIZE, 10_000),
+                this::ongoingFriendRequestExpired);
+        pendingFriendRequests = new ExpiringStore<>("pending-friend-requests",
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.PENDING_FRIEND_REQUEST_TTL_DAYS, 7) * 86_400_000L,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.PENDING_FRIEND_REQUEST_MAX_SIZE, 100_000),
+                (request, ignored) -> friendRequestExpired(request),
+                // too many pending requests to track is no reason to decline one, it just stays pending
+                (request, ignored) -> logger.warn("Too many pending friend requests, request from {} to {} "
+                        + "will not expire", request.senderId(), request.receiverId()));
+        // restored requests are kept only for the rest of their ttl
+        userStorage.forEachPendingFriendRequest(
+                request -> pendingFriendRequests.put(request, request, request.sentAtMillis()));
+        locationSharingPipeline = new LocationSharingPipeline(responseHandler,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.GEOCODE_THREADS, 4), threadMode);
+        liveLocationSharing = new LiveLocationSharing(locationSharingPipeline, responseHandler,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.LIVE_LOCATION_MIN_DISTANCE_METERS, 500),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.LIVE_LOCATION_MIN_INTERVAL_SECONDS, 60) * 1000L,
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.LIVE_LOCATION_EDITS_PER_SECOND, 10));
+        int updateLanes = ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.UPDATE_LANES, 0);
+        updateDispatcher = UpdateDispatcher.create(threadMode,
+                updateLanes > 0 ? updateLanes : Runtime.getRuntime().availableProcessors(),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.UPDATE_LANE_CAPACITY, 1000),
+                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.UPDATE_TIMEOUT_SECONDS, 60) * 1000L,
+                super::onUpdateReceived);
+        callbackRouter = new CallbackRouter()
+                .on(CallbackCommand.Instruction.ACCEPT_FRIEND_REQUEST, this::friendRequestAnswered)
+                .on(CallbackCommand.Instruction.DECLINE_FRIEND_REQUEST, this::friendRequestAnswered)
+                .on(CallbackCommand.Instruction.SELECT_FRIEND_TO_REMOVE, this::friendToRemoveSelected)
+                .on(CallbackCommand.Instruction.CONFIRM_FRIEND_REMOVE, this::friendRemoveConfirmed)
+                .on(CallbackCommand.Instruction.ABORT_FRIEND_REMOVE, this::friendRemoveAborted)
+                .on(CallbackCommand.Instruction.SHOW_NEXT_FRIENDS_TO_REMOVE, this::friendsToRemovePageRequested)
+                .on(CallbackCommand.Instruction.SHOW_PREVIOUS_FRIENDS_TO_REMOVE, this::friendsToRemovePageRequested);
 
         // create folder for logs
         java.io.File logsDir = new java.io.File("logs");
@@ -63,6 +126,82 @@ public class GeoPalBot extends AbilityBot {
         }
     }
 
+    /**
+     * Creates and restores the storage of users selected in the configuration properties:
+     * "journal" keeps the graph on the heap and persists it with {@link JournalGraphPersistence},
+     * "mapdb" keeps it in the bot database ({@link DbGeoUserStorage}), anything else keeps the graph only in memory
+     *
+     * @throws IOException if configuration property parsing or restoring of the graph failed
+     */
+    private GeoUserStorage createUserStorage() throws IOException {
+        String backend = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.STORAGE_BACKEND).toLowerCase();
+        GeoUserStorage storage = switch (backend) {
+            case "journal" -> {
+                String directory = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.STORAGE_DIRECTORY);
+                yield new HeapGeoUserStorage(new JournalGraphPersistence(Path.of(directory.isEmpty() ? "data" : directory),
+                        ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.STORAGE_SNAPSHOT_INTERVAL_MINUTES, 60)));
+            }
+            case "mapdb" -> new DbGeoUserStorage(db,
+                    ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.STORAGE_CACHE_SIZE, 100_000));
+            default -> new HeapGeoUserStorage();
+        };
+        storage.restore();
+        return storage;
+    }
+
+    /**
+     * Stops the bot, is called once the updates are no longer received. Work flows from the update handling
+     * (and expiry of friend requests) through live locations, location sharing pipeline and fan-out to the outbox
+     * and the user storage, so every stage is drained before the stages it hands work over to are stopped.
+     * Outbox and storage are closed last, so no message or mutation is handed over to them after they are closed.
+     * Messages that were not delivered yet are sent after the restart.
+     */
+    public void shutdown() {
+        try {
+            updateDispatcher.shutdown();
+            awaitStage("Update handling", updateDispatcher.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS));
+            ongoingFriendRequests.shutdown();
+            pendingFriendRequests.shutdown();
+            awaitStage("Friend request expiry",
+                    ongoingFriendRequests.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS)
+                            & pendingFriendRequests.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS));
+            liveLocationSharing.shutdown();
+            awaitStage("Live location sharing", liveLocationSharing.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS));
+            locationSharingPipeline.shutdown();
+            awaitStage("Location sharing", locationSharingPipeline.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS));
+            fanOut.shutdown();
+            awaitStage("Message fan-out", fanOut.awaitTermination(SHUTDOWN_STAGE_TIMEOUT_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Shutdown was interrupted, closing outbox and user storage right away");
+        }
+        try {
+            outbox.close();
+        } catch (IOException e) {
+            logger.error("Closing outbox failed! {}", e.getMessage());
+        }
+        try {
+            userStorage.close();
+        } catch (IOException e) {
+            logger.error("Closing user storage failed! {}", e.getMessage());
+        }
+    }
+
+    private static void awaitStage(String stage, boolean finished) {
+        if (!finished) {
+            logger.warn("{} did not finish within {} ms, stopping it anyway", stage, SHUTDOWN_STAGE_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Hands the update over to the {@link UpdateDispatcher}, which handles it with the usual AbilityBot processing
+     * in order with the other updates of its user
+     */
+    @Override
+    public void onUpdateReceived(Update update) {
+        updateDispatcher.dispatch(update);
+    }
+
     @Override
     public long creatorId() {
         return CREATOR_ID;
@@ -72,7 +211,7 @@ public class GeoPalBot extends AbilityBot {
      * @return list of chat ids of friends that will receive shared location from the user
      */
     private List<Long> getFriendChatIdsToShareLocationWith(GeoUser user) {
-        return user.getFriends().stream().map(GeoUser::getChatId).toList();
+        return userStorage.getFriends(user).stream().map(GeoUser::getChatId).toList();
     }
 
     /**
@@ -110,6 +249,22 @@ public class GeoPalBot extends AbilityBot {
                 .build();
     }
 
+    /**
+     * Sends state of the geocoding (caches, circuit breaker, bulkhead) to the creator of the bot
+     */
+    @SuppressWarnings("unused")
+    public Ability geoStats() {
+        return Ability
+                .builder()
+                .name("geo_stats")
+                .info("show geocoding statistics")
+                .input(0)
+                .privacy(CREATOR)
+                .locality(USER)
+                .action(ctx -> silent.send(LocationFinder.getStats(), ctx.chatId()))
+                .build();
+    }
+
     /**
      * Returns text that will be sent by /share_location
      *
@@ -122,37 +277,51 @@ public class GeoPalBot extends AbilityBot {
     }
 
     /**
-     * Sends location to all friends of the {@code user}. Text with location is generated
-     * by the {@code getLocationText()}.
+     * Starts sending location to all friends of the {@code user}. Text with location is generated
+     * by the {@code getLocationText()}. Geocoding and delivery are done by the {@link LocationSharingPipeline},
+     * so method returns right away and the user gets the result message when sharing is finished.
+     * If the location is a live location, messages sent to the friends are updated while it moves
+     * (see {@link LiveLocationSharing}).
      *
      * @param user     sender of the location text
      * @param location Telegram Bot API location, that will be sent to friends of the user
      */
-    private void sendLocationToFriends(User user, long chatId, Location location) throws IOException, UserNotRegisteredException {
+    private void sendLocationToFriends(User user, long chatId, Location location) throws UserNotRegisteredException {
         if (location == null) {
             throw new RuntimeException("Location was not provided!");
         }
-        LocationFinder.Location parsedLocation
-                = LocationFinder.getLocation(location.getLatitude(), location.getLongitude());
-        String locationText = getLocationText(user.getUserName(), parsedLocation);
         GeoUser locationSender = userStorage.getOrRegister(user, chatId);
-
-        try {
-            List<Long> friendChatIds = getFriendChatIdsToShareLocationWith(locationSender);
-            if (friendChatIds.isEmpty()) {
-                responseHandler.sendHasNoFriends(locationSender.getChatId());
-                return;
-            }
-            responseHandler.sendLocationToFriends(locationSender,
-                    friendChatIds, locationText);
-            responseHandler.sendLocationSharingResult(locationSender, true);
-        } catch (TelegramApiException e) {
-            responseHandler.sendLocationSharingResult(locationSender, false);
-        } catch (IllegalArgumentException e) {
-            logger.error("Location sharing failed: " + e.getMessage());
-            responseHandler.sendErrorMessage(locationSender.getChatId(), "Location sharing failed! Please try later!"
-            );
+        List<Long> friendChatIds = getFriendChatIdsToShareLocationWith(locationSender);
+        if (friendChatIds.isEmpty()) {
+            responseHandler.sendHasNoFriends(locationSender.getChatId());
+            return;
+        }
+        if (location.getLivePeriod() != null) {
+            liveLocationSharing.start(locationSender, friendChatIds, location.getLatitude(), location.getLongitude(),
+                    location.getLivePeriod(), parsedLocation -> getLocationText(user.getUserName(), parsedLocation));
+            return;
         }
+        locationSharingPipeline.share(locationSender, friendChatIds, location.getLatitude(), location.getLongitude(),
+                parsedLocation -> getLocationText(user.getUserName(), parsedLocation));
+    }
+
+    /**
+     * Reply to the updates of the live locations. Telegram sends every new position of a live location
+     * as an edit of the location message, stopped live location comes without the live period.
+     */
+    @SuppressWarnings("unused")
+    public Reply liveLocationUpdated() {
+        return Reply.of((bot, upd) -> {
+                    Message message = upd.getEditedMessage();
+                    Location location = message.getLocation();
+                    if (location.getLivePeriod() == null) {
+                        liveLocationSharing.stop(message.getFrom().getId());
+                    } else {
+                        liveLocationSharing.update(message.getFrom().getId(), location.getLatitude(),
+                                location.getLongitude());
+                    }
+                },
+                upd -> upd.hasEditedMessage() && upd.getEditedMessage().hasLocation());
     }
 
     /**
@@ -168,7 +337,7 @@ public class GeoPalBot extends AbilityBot {
                 .privacy(PUBLIC)
                 .locality(USER)
                 .action(ctx -> {
-                    if (userStorage.getOrRegister(ctx.user(), ctx.chatId()).getFriends().isEmpty()) {
+                    if (userStorage.getOrRegister(ctx.user(), ctx.chatId()).getFriendIds().isEmpty()) {
                             responseHandler.sendHasNoFriends(ctx.chatId());
                     } else {
                         responseHandler.askForLocation(ctx.chatId());
@@ -205,7 +374,7 @@ public class GeoPalBot extends AbilityBot {
             throw new UserNotRegisteredException("User is not registered by @" + getBotUsername() +
                     "! Please advise him to register and try again!");
         }
-        if (sender.getFriends().contains(receiver)) {
+        if (sender.isFriendWith(receiver.getUserId())) {
             return null;
         }
         OngoingFriendRequest request = new OngoingFriendRequest(sender, receiver);
@@ -213,58 +382,51 @@ public class GeoPalBot extends AbilityBot {
         return request;
     }
 
-    /**
-     * Function that returns predicate for an {@link Update} that checks if callbackQuery data of that update is
-     * a valid response for friend request
-     *
-     * @return predicate for an {@link Update} that checks if callbackQuery data of that update is a
-     * valid response for friend request
-     */
-    @NotNull
-    private Predicate<Update> friendRequestResponseCallback() {
-        return upd -> CallbackQueryDataFactory.FriendRequestAnswer.test(upd.getCallbackQuery().getData());
-    }
-
     /**
      * Performs action if friend request was answered by the receiver
      *
      * @param upd update with answer query in {@code upd.callbackQuery.data}
+     * @param command parsed answer with ids of the sender and the receiver of the request
      */
-    private void friendRequestAnswered(Update upd) {
-        String[] arguments = upd.getCallbackQuery().getData().split(":");
-        if (arguments.length != 3) {
-            responseHandler.sendErrorMessage(upd.getCallbackQuery().getMessage().getChatId(), "Invalid amount of arguments in callback query!"
-            );
-            logger.error("Invalid amount of arguments in callback query for chat {} !",
-                    upd.getCallbackQuery().getMessage().getChatId());
-        }
-
-        GeoUser sender = userStorage.getUser(Long.parseLong(arguments[1]));
+    private void friendRequestAnswered(Update upd, CallbackCommand command) {
+        GeoUser sender = userStorage.getUser(command.first());
         if (sender == null) {
             responseHandler.sendErrorMessage(upd.getCallbackQuery().getMessage().getChatId(), "You are not registered by the bot!" +
                     " Please do so with the /start command");
             return;
         }
 
-        GeoUser receiver = userStorage.getUser(Long.parseLong(arguments[2]));
+        GeoUser receiver = userStorage.getUser(command.second());
         if (receiver == null) {
             responseHandler.sendErrorMessage(upd.getCallbackQuery().getMessage().getChatId(), "User is not registered by the bot!" +
                             " Please advise them to register to use this functionality"
             );
             return;
         }
+        if (upd.getCallbackQuery().getFrom().getId() != receiver.getUserId()) {
+            logger.warn("{} tried to answer friend request sent to {}", upd.getCallbackQuery().getFrom().getId(),
+                    receiver.getUserId());
+            return;
+        }
 
-        GeoUser.FriendRequest request = receiver.getIncomingFriendRequests().get(sender);
-        switch (arguments[0]) {
-            case "accept_friend_request" -> {
-                receiver.acceptFriendRequest(sender);
-                // send acceptance messages
-                responseHandler.sendFriendRequestAccepted(sender, receiver);
+        GeoUser.FriendRequest request = receiver.getIncomingFriendRequests().get(sender.getUserId());
+        if (request == null) {
+            // request was already answered (e.g. button was pressed twice)
+            logger.info("Friend request from {} to {} is no longer pending", sender.getUserId(), receiver.getUserId());
+            return;
+        }
+        switch (command.instruction()) {
+            case ACCEPT_FRIEND_REQUEST -> {
+                if (userStorage.acceptFriendRequest(sender, receiver)) {
+                    // send acceptance messages
+                    responseHandler.sendFriendRequestAccepted(sender, receiver);
+                }
             }
-            case "decline_friend_request" -> {
-                receiver.declineFriendRequest(sender);
-                // send decline messages
-                responseHandler.sendFriendRequestDeclined(sender, receiver);
+            case DECLINE_FRIEND_REQUEST -> {
+                if (userStorage.declineFriendRequest(sender, receiver)) {
+                    // send decline messages
+                    responseHandler.sendFriendRequestDeclined(sender, receiver);
+                }
             }
             default -> {
                 responseHandler.sendErrorMessage(receiver.getChatId(), "Invalid callback instruction for friend request!"
@@ -272,15 +434,49 @@ public class GeoPalBot extends AbilityBot {
                 logger.error("Invalid callback instruction for friend request!");
             }
         }
-        responseHandler.removeInlineKeyboard(receiver.getChatId(), request.inlineMessageId());
+        pendingFriendRequests.remove(request);
+        if (request.inlineMessageId() != null) {
+            responseHandler.removeInlineKeyboard(receiver.getChatId(), request.inlineMessageId());
+        }
+    }
+
+    /**
+     * Cleans up the /add_friend flow the sender abandoned: removes the inline keyboard of the last message of the flow
+     * and the reply keyboard, if it is still shown
+     */
+    private void ongoingFriendRequestExpired(long senderId, OngoingFriendRequest request) {
+        logger.info("Friend request flow of {} expired", senderId);
+        if (request.getSenderInlineMessageId() != 0) {
+            responseHandler.removeInlineKeyboard(request.getSender().getChatId(), request.getSenderInlineMessageId());
+        }
+        // "Add friend" keyboard is still shown if the flow expired before the friend was chosen
+        responseHandler.sendFlowExpired(request.getSender().getChatId(), FRIEND_REQUEST_EXPIRED);
     }
 
     /**
-     * Reply that is triggered when friend request receiver responds on it
+     * Declines the friend request the receiver did not answer and removes the answer buttons from it
+     */
+    private void friendRequestExpired(GeoUser.FriendRequest request) {
+        GeoUser sender = userStorage.getUser(request.senderId());
+        GeoUser receiver = userStorage.getUser(request.receiverId());
+        // request might have been replaced by a newer one of the same sender
+        if (sender == null || receiver == null
+                || !request.equals(receiver.getIncomingFriendRequests().get(sender.getUserId()))) {
+            return;
+        }
+        logger.info("Friend request from {} to {} expired", sender.getUserId(), receiver.getUserId());
+        if (userStorage.declineFriendRequest(sender, receiver) && request.inlineMessageId() != null) {
+            responseHandler.removeInlineKeyboard(receiver.getChatId(), request.inlineMessageId());
+        }
+    }
+
+    /**
+     * Reply that is triggered when an inline button is pressed. Callback is handed over to the {@link CallbackRouter},
+     * callbacks of the /add_friend flow are handled by {@link #friendRequestFlow()}
      * */
     @SuppressWarnings("unused")
-    public Reply friendRequestAnswered() {
-        return Reply.of((bot, upd) -> friendRequestAnswered(upd), friendRequestResponseCallback());
+    public Reply callbackQueryReceived() {
+        return Reply.of((bot, upd) -> callbackRouter.dispatch(upd), Update::hasCallbackQuery);
     }
 
     /**
@@ -341,7 +537,7 @@ public class GeoPalBot extends AbilityBot {
      * */
     @NotNull
     private Predicate<Update> userSharedRegistered() {
-        return upd -> userStorage.getUsers().containsKey(upd.getMessage().getUserShared().getUserId());
+        return upd -> userStorage.isRegistered(upd.getMessage().getUserShared().getUserId());
     }
 
     /**
@@ -363,7 +559,7 @@ public class GeoPalBot extends AbilityBot {
                     ongoingFriendRequests.remove(sender.getUserId());
                     // deleting message as it's no longer needed
                     responseHandler.deleteMessage(messageReceived.getChatId(), messageReceived.getMessageId());
-                }, hasCallbackWith(Constants.FriendRequestConstants.ABORT_CALLBACK_QUERY));
+                }, hasCallbackWith(CallbackQueryDataFactory.FriendRequestFlow.getAbortCallback()));
 
         // used for both cases, when user has no comments and when he sends the friend request after the preview
         Reply confirmedSendingFriendRequest = Reply.of(
@@ -372,14 +568,24 @@ public class GeoPalBot extends AbilityBot {
                     User user = upd.getCallbackQuery().getFrom();
                     GeoUser sender = userStorage.getOrRegister(user, messageReceived.getChatId());
                     OngoingFriendRequest wrapper = ongoingFriendRequests.get(sender.getUserId());
+                    if (wrapper == null) {
+                        responseHandler.sendErrorMessage(sender.getChatId(), FRIEND_REQUEST_EXPIRED);
+                        return;
+                    }
                     logger.info("{} confirmed sending friend request!", user.getId());
 
                     // sending an actual friend request to the recipient
-                    responseHandler.sendFriendRequest(wrapper.getSender(), wrapper.getReceiver(), wrapper.getComment());
+                    GeoUser.FriendRequest request = responseHandler.sendFriendRequest(wrapper.getSender(),
+                            wrapper.getReceiver(), wrapper.getComment());
+                    if (request != null) {
+                        userStorage.sendFriendRequest(request);
+                        pendingFriendRequests.put(request, request);
+                        responseHandler.sendFriendRequestSent(wrapper.getSender(), wrapper.getReceiver());
+                    }
                     // removing ongoing friend request indicates finish of the request
                     ongoingFriendRequests.remove(sender.getUserId());
                     responseHandler.deleteMessage(sender.getChatId(), upd.getCallbackQuery().getMessage().getMessageId());
-                }, hasCallbackWith(Constants.FriendRequestConstants.CONFIRM_CALLBACK_QUERY));
+                }, hasCallbackWith(CallbackQueryDataFactory.FriendRequestFlow.getConfirmCallback()));
 
         // user has written text as reply bot
         ReplyFlow hasCommentsFlow = ReplyFlow.builder(db)
@@ -391,12 +597,21 @@ public class GeoPalBot extends AbilityBot {
                     logger.info("{} has comments: {}", messageReceived.getChatId(), messageReceived.getText());
 
                     OngoingFriendRequest wrapper = ongoingFriendRequests.get(sender.getUserId());
+                    if (wrapper == null) {
+                        responseHandler.sendErrorMessage(sender.getChatId(), FRIEND_REQUEST_EXPIRED);
+                        return;
+                    }
                     // comment will be accessible when confirming the friend request sending
                     wrapper.setComment(upd.getMessage().getText());
                     // request preview has options as to send the friend request or abort it
-                    responseHandler.sendFriendRequestPreview(wrapper.getSender(), wrapper.getReceiver(), wrapper.getComment());
+                    Integer previewMessageId = responseHandler.sendFriendRequestPreview(wrapper.getSender(),
+                            wrapper.getReceiver(), wrapper.getComment());
                     // remove keyboard from the message that asked for further comments
                     responseHandler.deleteMessage(messageReceived.getChatId(), wrapper.getSenderInlineMessageId());
+                    if (previewMessageId != null) {
+                        // preview is now the message with the keyboard of the flow
+                        wrapper.setSenderInlineMessageId(previewMessageId);
+                    }
                 })
                 .next(confirmedSendingFriendRequest)
                 .next(abortFriendRequest)
@@ -443,37 +658,6 @@ public class GeoPalBot extends AbilityBot {
                 .build();
     }
 
-    /**
-     * Returns string representation of a single friend that will be used in the friend list.
-     *
-     * @param friend user, whose string representation will be returned
-     * @return string representation of a single friend that will be used in the friend list
-     * in form "user.firstName user.lastName - user.userName"
-     * */
-    private String getFriendForList(GeoUser friend) {
-        String firstName = friend.getUser().getFirstName();
-        String lastName = friend.getUser().getLastName() == null ? "" : friend.getUser().getLastName();
-        return String.format("%s %s - @%s", firstName, lastName,
-                friend.getUser().getUserName());
-    }
-
-    /**
-     * Returns friend list representation user's friend list.
-     *
-     * @param friends friends that will be listed
-     * @return string representation of user's friend list
-     * */
-    private String getFriendListRepresentation(List<GeoUser> friends) {
-        StringBuilder sb = new StringBuilder();
-        int i = 1;
-        for (GeoUser friend : friends) {
-            // entry in form "i) friendRepresentation"
-            sb.append(i).append(") ").append(getFriendForList(friend)).append("\n");
-            i++;
-        }
-        return sb.toString();
-    }
-
     /**
      * Ability that sends friend list to user
      * */
@@ -488,24 +672,11 @@ public class GeoPalBot extends AbilityBot {
                 .locality(USER)
                 .action(ctx -> {
                     GeoUser user = userStorage.getOrRegister(ctx.user(), ctx.chatId());
-                    responseHandler.sendFriendList(ctx.chatId(),
-                            getFriendListRepresentation(user.getFriends().stream().toList()));
+                    responseHandler.sendFriendList(ctx.chatId(), friendListView.render(user));
                 })
                 .build();
     }
 
-    /**
-     * Function that returns predicate for an {@link Update} that checks if callbackQuery data of that update is
-     * valid callback for removeFriend instruction flow
-     *
-     * @return predicate for an {@link Update} that checks if callbackQuery data of that update is
-     * valid callback for removeFriend instruction flow
-     */
-    @NotNull
-    private Predicate<Update> isRemoveFriendCallback() {
-        return upd -> CallbackQueryDataFactory.RemoveFriend.test(upd.getCallbackQuery().getData());
-    }
-
     /**
      * @return text representation of a friend for button in a list (usually remove friend list)
      * */
@@ -514,14 +685,14 @@ public class GeoPalBot extends AbilityBot {
     }
 
     /**
-     * @param user user whose friends will be translated into buttons
+     * @param page page of the friend list whose friends will be translated into buttons
      * @return  a list of button entries for {@link org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup}
-     * in form [friendName, remove_friend:friendId], where key should represent button text and value - button callback
+     * in form [friendName, select friend callback], where key should represent button text and value - button callback
      * */
-    private List<Map.Entry<String, String>> getRemoveFriendButtons(GeoUser user) {
-        List<Map.Entry<String, String>> buttons = new ArrayList<>();
-        int i  = 1;
-        for (GeoUser friend : user.getFriends()) {
+    private List<Map.Entry<String, String>> getRemoveFriendButtons(FriendListPage page) {
+        List<Map.Entry<String, String>> buttons = new ArrayList<>(page.friends().size());
+        int i = page.firstPosition() + 1;
+        for (GeoUser friend : page.friends()) {
             buttons.add(new AbstractMap.SimpleImmutableEntry<>(String.format("%d) %s", i, getFriendButtonText(friend)),
                     CallbackQueryDataFactory.RemoveFriend.getSelectUserCallback(friend.getUserId())));
             i++;
@@ -543,53 +714,67 @@ public class GeoPalBot extends AbilityBot {
                 .locality(USER)
                 .action(ctx -> {
                     GeoUser user = userStorage.getOrRegister(ctx.user(), ctx.chatId());
-                    responseHandler.sendFriendListToRemove(ctx.chatId(), null, getRemoveFriendButtons(user), 0, true);
+                    FriendListPage page = FriendListPage.first(userStorage, user.getFriendIds());
+                    responseHandler.sendFriendListToRemove(ctx.chatId(), null, page, getRemoveFriendButtons(page), true);
                 })
-                .reply((bot, upd) -> {
-                    CallbackQuery callbackQuery = upd.getCallbackQuery();
-                    Message messageReceived = callbackQuery.getMessage();
-                    GeoUser user = userStorage.getOrRegister(callbackQuery.getFrom(),
-                            messageReceived.getChatId());
-                    List<Map.Entry<String, String>> buttons = getRemoveFriendButtons(user);
-                    // parse incoming arguments
-                    String[] arguments = callbackQuery.getData().split(":");
-                    switch (arguments[1]) {
-                        // next/previous were pressed, new start index is provided
-                        case "index" -> responseHandler.sendFriendListToRemove(messageReceived.getChatId(),
-                                messageReceived.getMessageId(), buttons, Integer.parseInt(arguments[2]), false);
-                        case "abort" -> {
-                            responseHandler.deleteMessage(messageReceived.getChatId(), messageReceived.getMessageId());
-                            responseHandler.sendActionAbortedMessage(messageReceived);
-                        }
-                        case "confirm" -> {
-                            GeoUser friend = userStorage.getUser(Long.parseLong(arguments[2]));
-                            if (friend == null) {
-                                logger.error("User is not registered, could not delete him!");
-                                return;
-                            }
-                            user.removeFriend(friend);
-                            friend.removeFriend(user);
-                            responseHandler.sendSuccessfullyDeleted(messageReceived.getChatId(), friend.getUser().getUserName());
-                            responseHandler.sendDeletedFromFriends(friend.getChatId(), user.getUser().getUserName());
-                            responseHandler.deleteMessage(messageReceived.getChatId(), messageReceived.getMessageId());
-                        }
-                        default -> {
-                            // provided the friend he wants to remove
-                            GeoUser friendToRemove = userStorage.getUser(Long.parseLong(arguments[1]));
-                            if (friendToRemove == null) {
-                                logger.error("User is not registered, could not delete him!");
-                                return;
-                            }
-                            if (!user.getFriends().contains(friendToRemove)) {
-                                silent.send("User is no longer your friend! Could not remove him!", user.getChatId());
-                                return;
-                            }
-                            responseHandler.askToConfirmFriendRemove(upd.getCallbackQuery().getMessage().getChatId(),
-                                    friendToRemove.getUser().getUserName(), arguments[1]);
-                        }
-                    }
-
-                }, isRemoveFriendCallback())
                 .build();
     }
+
+    /**
+     * Shows another page of the list of friends to remove, when next/previous was pressed
+     */
+    private void friendsToRemovePageRequested(Update upd, CallbackCommand command) {
+        Message messageReceived = upd.getCallbackQuery().getMessage();
+        GeoUser user = userStorage.getOrRegister(upd.getCallbackQuery().getFrom(), messageReceived.getChatId());
+        FriendListPage page = command.instruction() == CallbackCommand.Instruction.SHOW_NEXT_FRIENDS_TO_REMOVE
+                ? FriendListPage.after(userStorage, user.getFriendIds(), command.first())
+                : FriendListPage.before(userStorage, user.getFriendIds(), command.first());
+        responseHandler.sendFriendListToRemove(messageReceived.getChatId(), messageReceived.getMessageId(),
+                page, getRemoveFriendButtons(page), false);
+    }
+
+    /**
+     * Asks to confirm the removal of the friend selected in the list of friends to remove
+     */
+    private void friendToRemoveSelected(Update upd, CallbackCommand command) {
+        Message messageReceived = upd.getCallbackQuery().getMessage();
+        GeoUser user = userStorage.getOrRegister(upd.getCallbackQuery().getFrom(), messageReceived.getChatId());
+        GeoUser friendToRemove = userStorage.getUser(command.first());
+        if (friendToRemove == null) {
+            logger.error("User is not registered, could not delete him!");
+            return;
+        }
+        if (!user.isFriendWith(friendToRemove.getUserId())) {
+            silent.send("User is no longer your friend! Could not remove him!", user.getChatId());
+            return;
+        }
+        responseHandler.askToConfirmFriendRemove(messageReceived.getChatId(),
+                friendToRemove.getUser().getUserName(), friendToRemove.getUserId());
+    }
+
+    /**
+     * Removes the friend whose removal was confirmed and notifies both users
+     */
+    private void friendRemoveConfirmed(Update upd, CallbackCommand command) {
+        Message messageReceived = upd.getCallbackQuery().getMessage();
+        GeoUser user = userStorage.getOrRegister(upd.getCallbackQuery().getFrom(), messageReceived.getChatId());
+        GeoUser friend = userStorage.getUser(command.first());
+        if (friend == null) {
+            logger.error("User is not registered, could not delete him!");
+            return;
+        }
+        userStorage.removeFriendship(user, friend);
+        responseHandler.sendSuccessfullyDeleted(messageReceived.getChatId(), friend.getUser().getUserName());
+        responseHandler.sendDeletedFromFriends(friend.getChatId(), user.getUser().getUserName());
+        responseHandler.deleteMessage(messageReceived.getChatId(), messageReceived.getMessageId());
+    }
+
+    /**
+     * Removes the list of friends to remove, when removing was aborted
+     */
+    private void friendRemoveAborted(Update upd, CallbackCommand command) {
+        Message messageReceived = upd.getCallbackQuery().getMessage();
+        responseHandler.deleteMessage(messageReceived.getChatId(), messageReceived.getMessageId());
+        responseHandler.sendActionAbortedMessage(messageReceived);
+    }
 }
@@ -0,0 +1,80 @@
+package bot.model;
+
+/**
+ * Callback data of an inline button parsed into the instruction and its arguments.
+ * See {@link CallbackQueryDataFactory#parse(String)} for the parsing and {@link CallbackRouter} for the dispatching.
+ *
+ * @param instruction action the button stands for
+ * @param first       first argument of the instruction, 0 if the instruction has none
+ * @param second      second argument of the instruction, 0 if the instruction has less than two
+ */
+public record CallbackCommand(Instruction instruction, long first, long second) {
+
+    /**
+     * All actions of the inline buttons of the bot. Opcode is stored in the callback data,
+     * so opcodes of existing instructions should never change.
+     */
+    public enum Instruction {
+        // arguments: sender id, receiver id
+        ACCEPT_FRIEND_REQUEST(1, 2),
+        // arguments: sender id, receiver id
+        DECLINE_FRIEND_REQUEST(2, 2),
+        // sending the friend request in the /add_friend flow, no arguments
+        CONFIRM_FRIEND_REQUEST(3, 0),
+        // aborting the /add_friend flow, no arguments
+        ABORT_FRIEND_REQUEST(4, 0),
+        // arguments: id of the friend
+        SELECT_FRIEND_TO_REMOVE(5, 1),
+        // arguments: id of the friend
+        CONFIRM_FRIEND_REMOVE(6, 1),
+        // no arguments
+        ABORT_FRIEND_REMOVE(7, 0),
+        // 8 was a page of friends to remove by index, ignored since pages are addressed by cursors
+        // arguments: id of the last friend of the current page
+        SHOW_NEXT_FRIENDS_TO_REMOVE(9, 1),
+        // arguments: id of the first friend of the current page
+        SHOW_PREVIOUS_FRIENDS_TO_REMOVE(10, 1);
+
+        private static final Instruction[] byCode = new Instruction[128];
+
+        static {
+            for (Instruction instruction : values()) {
+                byCode[instruction.code] = instruction;
+            }
+        }
+
+        private final byte code;
+        private final int arguments;
+
+        Instruction(int code, int arguments) {
+            this.code = (byte) code;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @return instruction with the opcode, or {@code null} if there is none
+         */
+        public static Instruction of(byte code) {
+            return code < 0 ? null : byCode[code];
+        }
+
+        public byte code() {
+            return code;
+        }
+
+        /**
+         * @return amount of arguments the instruction takes
+         */
+        public int arguments() {
+            return arguments;
+        }
+    }
+
+    public CallbackCommand(Instruction instruction) {
+        this(instruction, 0, 0);
+    }
+
+    public CallbackCommand(Instruction instruction, long first) {
+        this(instruction, first, 0);
+    }
+}
@@ -1,31 +1,189 @@
 package bot.model;
 
+import bot.model.CallbackCommand.Instruction;
+import exceptions.InvalidCallbackQueryException;
+import utils.ConfigLoader;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
 /**
  * Factory class to get the complex callback queries
+ * <p>
+ * Callback data is binary: opcode of the instruction, its arguments as unsigned varints and a truncated
+ * HMAC-SHA256 tag of both, encoded as base64url without padding. Tag keeps users from forging callbacks
+ * (e.g. answering a friend request sent to someone else), and the longest callback takes 39 of the 64 bytes
+ * Telegram allows.
  * */
 public class CallbackQueryDataFactory {
+    private static final int TAG_LENGTH = 8;
+    private static final int MAX_VARINT_LENGTH = 10;
+    private static final int MAX_ARGUMENTS = 2;
+    private static final int MAX_DATA_LENGTH = 64;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private static volatile SecretKeySpec key;
+    // Mac is not thread safe, every thread gets its own
+    private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(CallbackQueryDataFactory::createMac);
+
+    /**
+     * Assembles callback data of the instruction with the given arguments.
+     *
+     * @param instruction instruction of the button
+     * @param arguments   arguments of the instruction, should be as many as {@code instruction.arguments()}
+     * @return the assembled callback data string
+     */
+    public static String assembleCallbackData(Instruction instruction, long... arguments) {
+        if (arguments.length != instruction.arguments()) {
+            throw new IllegalArgumentException("Instruction " + instruction + " takes " + instruction.arguments() +
+                    " arguments!");
+        }
+        byte[] data = new byte[1 + MAX_ARGUMENTS * MAX_VARINT_LENGTH + TAG_LENGTH];
+        data[0] = instruction.code();
+        int length = 1;
+        for (long argument : arguments) {
+            length = writeVarint(data, length, argument);
+        }
+        System.arraycopy(tag(data, length), 0, data, length, TAG_LENGTH);
+        return encoder.encodeToString(Arrays.copyOf(data, length + TAG_LENGTH));
+    }
+
+    /**
+     * Parses callback data assembled by this factory into a {@link CallbackCommand}.
+     * Data is decoded in a single pass, without regular expressions and without splitting it into parts.
+     *
+     * @param data callback data of the pressed button
+     * @return parsed callback command
+     * @throws InvalidCallbackQueryException if the data was not assembled by this factory or its tag does not match
+     */
+    public static CallbackCommand parse(String data) throws InvalidCallbackQueryException {
+        if (data == null || data.isEmpty() || data.length() > MAX_DATA_LENGTH) {
+            throw new InvalidCallbackQueryException("Callback query has no valid data!");
+        }
+        byte[] bytes;
+        try {
+            bytes = decoder.decode(data);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCallbackQueryException("Callback query data is not base64url: " + data);
+        }
+        int length = bytes.length - TAG_LENGTH;
+        if (length < 1) {
+            throw new InvalidCallbackQueryException("Callback query data is too short: " + data);
+        }
+        if (!tagMatches(tag(bytes, length), bytes, length)) {
+            throw new InvalidCallbackQueryException("Callback query data has invalid tag: " + data);
+        }
+        Instruction instruction = Instruction.of(bytes[0]);
+        if (instruction == null) {
+            throw new InvalidCallbackQueryException("Unknown callback instruction: " + bytes[0]);
+        }
+        long[] arguments = new long[MAX_ARGUMENTS];
+        int position = 1;
+        for (int i = 0; i < instruction.arguments(); i++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= length || shift >= 64) {
+                    throw new InvalidCallbackQueryException("Invalid arguments in callback query: " + data);
+                }
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            arguments[i] = value;
+        }
+        if (position != length) {
+            throw new InvalidCallbackQueryException("Invalid amount of arguments in callback query: " + data);
+        }
+        return new CallbackCommand(instruction, arguments[0], arguments[1]);
+    }
 
     /**
-     * Assembles a callback data string based on the given instruction name and arguments.
+     * Writes {@code value} as unsigned LEB128 varint
      *
-     * @param instructionName the name of the instruction to include in the callback data string.
-     * @param arguments       the arguments to include in the callback data string, separated by colons.
-     * @return the assembled callback data string.
-     * Example callback data string: "remove_friend:confirm:123"
+     * @return position after the written value
      */
-    public static String assembleCallbackData(String instructionName, String... arguments) {
-        StringBuilder sb = new StringBuilder(instructionName);
-        for (String argument : arguments) {
-            sb.append(":").append(argument);
+    private static int writeVarint(byte[] data, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
         }
-        return sb.toString();
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    private static byte[] tag(byte[] data, int length) {
+        Mac hmac = mac.get();
+        hmac.update(data, 0, length);
+        return hmac.doFinal();
+    }
+
+    /**
+     * Compares the tag in constant time, so the time of the comparison does not tell how much of the tag was right
+     */
+    private static boolean tagMatches(byte[] expected, byte[] data, int offset) {
+        int difference = 0;
+        for (int i = 0; i < TAG_LENGTH; i++) {
+            difference |= expected[i] ^ data[offset + i];
+        }
+        return difference == 0;
+    }
+
+    private static Mac createMac() {
+        try {
+            Mac result = Mac.getInstance(HMAC_ALGORITHM);
+            result.init(getKey());
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not create callback data HMAC!", e);
+        }
+    }
+
+    /**
+     * Returns the key of the callback tags, creating it from the configuration on the first call.
+     * If no secret is configured, key is derived from the bot token, so callbacks stay valid across restarts.
+     */
+    private static SecretKeySpec getKey() throws GeneralSecurityException {
+        SecretKeySpec result = key;
+        if (result == null) {
+            synchronized (CallbackQueryDataFactory.class) {
+                result = key;
+                if (result == null) {
+                    try {
+                        String secret = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.CALLBACK_SECRET);
+                        if (secret.isEmpty()) {
+                            Mac derivation = Mac.getInstance(HMAC_ALGORITHM);
+                            derivation.init(new SecretKeySpec(ConfigLoader.getProperty(
+                                    ConfigLoader.ConfigProperty.TELEGRAM_BOT_API_KEY).getBytes(StandardCharsets.UTF_8),
+                                    HMAC_ALGORITHM));
+                            result = new SecretKeySpec(derivation.doFinal(
+                                    "callback-data".getBytes(StandardCharsets.UTF_8)), HMAC_ALGORITHM);
+                        } else {
+                            result = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    key = result;
+                }
+            }
+        }
+        return result;
     }
 
     /**
      * Contains utility methods related to callback data from answering on a friend request.
      */
     public static class FriendRequestAnswer {
-        public static final String CALLBACK_REGEX = "(accept|decline)_friend_request:\\d*:\\d*";
 
         /**
          * Returns callback data for accepting a friend request.
@@ -33,10 +191,9 @@ public class CallbackQueryDataFactory {
          * @param from the ID of the user who sent the friend request
          * @param to the ID of the user who received the friend request
          * @return a String containing the generated callback data
-         * Example: "accept_friend_request:1337:1234"
          */
         public static String acceptRequest(long from, long to) {
-            return assembleCallbackData("accept_friend_request", String.valueOf(from), String.valueOf(to));
+            return assembleCallbackData(Instruction.ACCEPT_FRIEND_REQUEST, from, to);
         }
 
         /**
@@ -45,20 +202,42 @@ public class CallbackQueryDataFactory {
          * @param from the ID of the user who sent the friend request
          * @param to the ID of the user who received the friend request
          * @return a String containing the generated callback data
-         * Example: "decline_friend_request:1:2"
          */
         public static String declineRequest(long from, long to) {
-            return assembleCallbackData("decline_friend_request", String.valueOf(from), String.valueOf(to));
+            return assembleCallbackData(Instruction.DECLINE_FRIEND_REQUEST, from, to);
         }
+    }
+
+    /**
+     * Contains callback data of the buttons of the /add_friend flow. Callbacks have no arguments,
+     * so they are assembled once.
+     */
+    public static class FriendRequestFlow {
+        private static volatile String confirmCallback;
+        private static volatile String abortCallback;
 
         /**
-         * Tests whether the provided callback data matches the answer on friend request format.
-         *
-         * @param data the callback data to test
-         * @return true if the provided data matches the format, false otherwise
+         * @return callback data for sending the friend request
          */
-        public static boolean test(String data) {
-            return data.matches(CALLBACK_REGEX);
+        public static String getConfirmCallback() {
+            String result = confirmCallback;
+            if (result == null) {
+                result = assembleCallbackData(Instruction.CONFIRM_FRIEND_REQUEST);
+                confirmCallback = result;
+            }
+            return result;
+        }
+
+        /**
+         * @return callback data for aborting the friend request
+         */
+        public static String getAbortCallback() {
+            String result = abortCallback;
+            if (result == null) {
+                result = assembleCallbackData(Instruction.ABORT_FRIEND_REQUEST);
+                abortCallback = result;
+            }
+            return result;
         }
     }
 
@@ -66,60 +245,54 @@ public class CallbackQueryDataFactory {
      * Contains utility methods related to callback data from removing a friend.
      */
     public static class RemoveFriend {
-        public static final String INSTRUCTION_NAME = "remove_friend";
-        public static final String CALLBACK_REGEX = "remove_friend:((\\d*|confirm:\\d*)|(abort)|(index:\\d*))";
 
         /**
          * Returns a callback data string for confirming the removal of a friend.
          *
          * @param userId the ID of the friend to remove.
          * @return the callback data string for confirming the removal of the friend.
-         * Example callback data string: "remove_friend:confirm:123"
          */
-        public static String getConfirmCallback(String userId) {
-            return assembleCallbackData(INSTRUCTION_NAME, "confirm", userId);
+        public static String getConfirmCallback(long userId) {
+            return assembleCallbackData(Instruction.CONFIRM_FRIEND_REMOVE, userId);
         }
 
         /**
          * Returns a callback data string for aborting the removal of a friend.
          *
          * @return the callback data string for aborting the removal of a friend.
-         * Example callback data string: "remove_friend:abort"
          */
         public static String getAbortCallback() {
-            return assembleCallbackData(INSTRUCTION_NAME, "abort");
+            return assembleCallbackData(Instruction.ABORT_FRIEND_REMOVE);
         }
 
         /**
-         * Returns a callback data string for setting a new start index for pagination of the list of friends.
+         * Returns a callback data string for showing the page of the list of friends after the current one.
          *
-         * @param newStartIndex the new index from which the list of friends will start next time.
-         * @return the callback data string for setting a new start index.
-         * Example callback data string: "remove_friend:index:20"
+         * @param lastId id of the last friend on the current page.
+         * @return the callback data string for showing the next page.
          */
-        public static String getNewIndexCallback(int newStartIndex) {
-            return assembleCallbackData(INSTRUCTION_NAME, "index" , String.valueOf(newStartIndex));
+        public static String getNextPageCallback(long lastId) {
+            return assembleCallbackData(Instruction.SHOW_NEXT_FRIENDS_TO_REMOVE, lastId);
         }
 
         /**
-         * Returns a callback data string for selecting a friend to remove.
+         * Returns a callback data string for showing the page of the list of friends before the current one.
          *
-         * @param userId the ID of the friend to select for removal.
-         * @return the callback data string for selecting a friend to remove.
-         * Example callback data string: "remove_friend:123"
+         * @param firstId id of the first friend on the current page.
+         * @return the callback data string for showing the previous page.
          */
-        public static String getSelectUserCallback(long userId) {
-            return assembleCallbackData(INSTRUCTION_NAME, String.valueOf(userId));
+        public static String getPreviousPageCallback(long firstId) {
+            return assembleCallbackData(Instruction.SHOW_PREVIOUS_FRIENDS_TO_REMOVE, firstId);
         }
 
         /**
-         * Tests whether the given callback data string matches the regex pattern for remove friend requests.
+         * Returns a callback data string for selecting a friend to remove.
          *
-         * @param data the callback data string to test.
-         * @return true if the given callback data string matches the regex pattern for removing a friend, false otherwise.
+         * @param userId the ID of the friend to select for removal.
+         * @return the callback data string for selecting a friend to remove.
          */
-        public static boolean test(String data) {
-            return data.matches(CALLBACK_REGEX);
+        public static String getSelectUserCallback(long userId) {
+            return assembleCallbackData(Instruction.SELECT_FRIEND_TO_REMOVE, userId);
         }
     }
 }
@@ -0,0 +1,53 @@
+package bot.model;
+
+import exceptions.InvalidCallbackQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Dispatches callback queries to their handlers. Callback data is parsed once into a {@link CallbackCommand}
+ * and the handler is looked up by its instruction, so the cost of a callback does not grow with the amount of buttons.
+ * Instructions without a handler (e.g. the ones handled by reply flows) are ignored.
+ */
+public class CallbackRouter {
+    private static final Logger logger = LoggerFactory.getLogger(CallbackRouter.class);
+    private final Map<CallbackCommand.Instruction, BiConsumer<Update, CallbackCommand>> handlers =
+            new EnumMap<>(CallbackCommand.Instruction.class);
+
+    /**
+     * Registers {@code handler} for the callbacks with {@code instruction}, replacing the previous one
+     *
+     * @return this router
+     */
+    public CallbackRouter on(CallbackCommand.Instruction instruction, BiConsumer<Update, CallbackCommand> handler) {
+        handlers.put(instruction, handler);
+        return this;
+    }
+
+    /**
+     * Parses the callback data of the update and hands it over to the handler of its instruction
+     *
+     * @param upd update with a callback query
+     * @return true if the callback was handled
+     */
+    public boolean dispatch(Update upd) {
+        CallbackCommand command;
+        try {
+            command = CallbackQueryDataFactory.parse(upd.getCallbackQuery().getData());
+        } catch (InvalidCallbackQueryException e) {
+            logger.warn("Ignoring callback query from {}! {}", upd.getCallbackQuery().getFrom().getId(), e.getMessage());
+            return false;
+        }
+        BiConsumer<Update, CallbackCommand> handler = handlers.get(command.instruction());
+        if (handler == null) {
+            return false;
+        }
+        handler.accept(upd, command);
+        return true;
+    }
+}
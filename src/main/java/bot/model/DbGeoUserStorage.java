@@ -0,0 +1,444 @@
+package bot.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.abilitybots.api.db.DBContext;
+import org.telegram.telegrambots.meta.api.objects.User;
+import utils.DaemonThreads;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Storage that keeps users and their friend graph in the maps of the AbilityBot {@link DBContext} (MapDB by default),
+ * so the graph stays off the heap and survives restarts without an external database. Only the most recently used
+ * users are kept on the heap, the others are read from the database when they are needed.
+ * Nothing is stored with Java serialization of {@link GeoUser}:
+ * <ul>
+ *     <li>{@code geo_users}: user id to a compact binary record of chat id and names</li>
+ *     <li>{@code geo_friends}: user id to a sorted array of ids of his friends</li>
+ *     <li>{@code geo_friend_requests}: "senderId:receiverId" to a compact binary record of the request</li>
+ *     <li>{@code geo_outgoing_requests}, {@code geo_incoming_requests}: user id to ids of the receivers (senders)
+ *     of his pending requests</li>
+ * </ul>
+ * Maps of the database are hash maps that can't be scanned by a part of the key, so friends of a user are kept
+ * in a single array that is read with one lookup. A mutation updates the array of the cached user and writes it
+ * once, it is never decoded from the database again.
+ * <p>
+ * A user can be evicted from the cache while he is still in use and loaded again, so users are locked by their id
+ * and not by the instance. Loading and mutating a user both hold the lock of his id, so a user is never loaded
+ * in the middle of a mutation. Changes are committed in the background once per second and when the storage is closed.
+ */
+public class DbGeoUserStorage implements GeoUserStorage {
+    private static final Logger logger = LoggerFactory.getLogger(DbGeoUserStorage.class);
+    private static final String USERS = "geo_users";
+    private static final String FRIENDS = "geo_friends";
+    private static final String FRIEND_REQUESTS = "geo_friend_requests";
+    private static final String OUTGOING_REQUESTS = "geo_outgoing_requests";
+    private static final String INCOMING_REQUESTS = "geo_incoming_requests";
+    private static final long COMMIT_INTERVAL_MILLIS = 1000;
+    private static final int LOCK_STRIPES = 256;
+    private static final long[] NO_IDS = new long[0];
+
+    private final DBContext db;
+    private final Map<Long, byte[]> users;
+    private final Map<Long, long[]> friends;
+    private final Map<String, byte[]> friendRequests;
+    private final Map<Long, long[]> outgoingRequests;
+    private final Map<Long, long[]> incomingRequests;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // guarded by itself, access order -> iteration starts from the least recently used user
+    private final LinkedHashMap<Long, GeoUser> cache;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private ScheduledExecutorService committer;
+
+    /**
+     * @param db        database the graph is stored in
+     * @param cacheSize max amount of users kept on the heap
+     */
+    public DbGeoUserStorage(DBContext db, int cacheSize) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive!");
+        }
+        this.db = db;
+        this.users = db.getMap(USERS);
+        this.friends = db.getMap(FRIENDS);
+        this.friendRequests = db.getMap(FRIEND_REQUESTS);
+        this.outgoingRequests = db.getMap(OUTGOING_REQUESTS);
+        this.incomingRequests = db.getMap(INCOMING_REQUESTS);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, GeoUser> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Nothing is loaded, users are read when they are needed. Only indexes of the pending requests are created
+     * if the requests were stored before the indexes existed.
+     */
+    @Override
+    public void restore() throws IOException {
+        if (outgoingRequests.isEmpty() && incomingRequests.isEmpty() && !friendRequests.isEmpty()) {
+            Map<Long, Set<Long>> outgoing = new HashMap<>();
+            Map<Long, Set<Long>> incoming = new HashMap<>();
+            for (byte[] record : friendRequests.values()) {
+                GeoUser.FriendRequest request = decodeRequest(record);
+                outgoing.computeIfAbsent(request.senderId(), id -> new HashSet<>()).add(request.receiverId());
+                incoming.computeIfAbsent(request.receiverId(), id -> new HashSet<>()).add(request.senderId());
+            }
+            outgoing.forEach((id, ids) -> writeIds(outgoingRequests, id, ids));
+            incoming.forEach((id, ids) -> writeIds(incomingRequests, id, ids));
+            db.commit();
+            logger.info("Indexed {} pending friend requests", friendRequests.size());
+        }
+        logger.info("{} users are stored in the bot database", users.size());
+
+        committer = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("graph-commit"));
+        committer.scheduleWithFixedDelay(this::commitIfDirty, COMMIT_INTERVAL_MILLIS, COMMIT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void commitIfDirty() {
+        if (dirty.getAndSet(false)) {
+            try {
+                db.commit();
+            } catch (RuntimeException e) {
+                dirty.set(true);
+                logger.error("Committing friend graph failed! {}", e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Locking and loading
+     */
+
+    private Object lockOf(long userId) {
+        return locks[stripe(userId)];
+    }
+
+    private static int stripe(long userId) {
+        // spreads sequential ids evenly over the stripes
+        return Math.floorMod((int) ((userId * 0x9E3779B97F4A7C15L) >>> 32), LOCK_STRIPES);
+    }
+
+    /**
+     * Runs {@code action} while holding the locks of both users. Locks are always taken in the same order,
+     * so concurrent actions on the same pair of users can't deadlock.
+     */
+    private <T> T locked(long firstId, long secondId, Supplier<T> action) {
+        int first = stripe(firstId);
+        int second = stripe(secondId);
+        synchronized (locks[Math.min(first, second)]) {
+            synchronized (locks[Math.max(first, second)]) {
+                return action.get();
+            }
+        }
+    }
+
+    private GeoUser cached(long userId) {
+        synchronized (cache) {
+            return cache.get(userId);
+        }
+    }
+
+    /**
+     * Returns the cached user or loads him from the database, lock of the user has to be held
+     *
+     * @return user with the id, or {@code null} if he is not registered
+     */
+    private GeoUser load(long userId) {
+        GeoUser user = cached(userId);
+        if (user != null) {
+            return user;
+        }
+        byte[] record = users.get(userId);
+        if (record == null) {
+            return null;
+        }
+        user = decodeUser(userId, record);
+        long[] friendIds = friends.get(userId);
+        if (friendIds != null) {
+            user.restoreFriends(SortedLongSet.of(friendIds));
+        }
+        for (long receiverId : idsOf(outgoingRequests.get(userId))) {
+            byte[] request = friendRequests.get(requestKey(userId, receiverId));
+            if (request != null) {
+                user.restoreOutgoingFriendRequest(decodeRequest(request));
+            }
+        }
+        for (long senderId : idsOf(incomingRequests.get(userId))) {
+            byte[] request = friendRequests.get(requestKey(senderId, userId));
+            if (request != null) {
+                user.restoreIncomingFriendRequest(decodeRequest(request));
+            }
+        }
+        synchronized (cache) {
+            cache.put(userId, user);
+        }
+        return user;
+    }
+
+    /*
+     * Writing the mutated users, lock of the user has to be held
+     */
+
+    private void writeFriends(GeoUser user) {
+        SortedLongSet friendIds = user.getFriendIds();
+        if (friendIds.isEmpty()) {
+            friends.remove(user.getUserId());
+        } else {
+            friends.put(user.getUserId(), friendIds.toArray());
+        }
+    }
+
+    private void writeRequestIds(GeoUser user) {
+        writeIds(outgoingRequests, user.getUserId(), user.getOutgoingFriendRequests().keySet());
+        writeIds(incomingRequests, user.getUserId(), user.getIncomingFriendRequests().keySet());
+    }
+
+    private static void writeIds(Map<Long, long[]> map, long userId, Set<Long> ids) {
+        if (ids.isEmpty()) {
+            map.remove(userId);
+        } else {
+            map.put(userId, ids.stream().mapToLong(Long::longValue).sorted().toArray());
+        }
+    }
+
+    /*
+     * Storage
+     */
+
+    @NotNull
+    @Override
+    public GeoUser addUser(User user, Long chatId) {
+        GeoUser existing = getUser(user.getId());
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (lockOf(user.getId())) {
+            GeoUser geoUser = load(user.getId());
+            if (geoUser != null) {
+                return geoUser;
+            }
+            geoUser = new GeoUser(user, chatId);
+            users.put(user.getId(), encodeUser(geoUser));
+            dirty.set(true);
+            synchronized (cache) {
+                cache.put(user.getId(), geoUser);
+            }
+            return geoUser;
+        }
+    }
+
+    @Override
+    public GeoUser getUser(long userId) {
+        GeoUser user = cached(userId);
+        if (user != null) {
+            return user;
+        }
+        synchronized (lockOf(userId)) {
+            return load(userId);
+        }
+    }
+
+    @Override
+    public boolean isRegistered(long userId) {
+        return cached(userId) != null || users.containsKey(userId);
+    }
+
+    @Override
+    public List<GeoUser> getFriends(GeoUser user) {
+        SortedLongSet friendIds = user.getFriendIds();
+        List<GeoUser> result = new ArrayList<>(friendIds.size());
+        for (int i = 0; i < friendIds.size(); i++) {
+            GeoUser friend = getUser(friendIds.get(i));
+            if (friend != null) {
+                result.add(friend);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void forEachPendingFriendRequest(Consumer<GeoUser.FriendRequest> action) {
+        for (byte[] record : friendRequests.values()) {
+            action.accept(decodeRequest(record));
+        }
+    }
+
+    @Override
+    public void sendFriendRequest(GeoUser.FriendRequest request) {
+        locked(request.senderId(), request.receiverId(), () -> {
+            GeoUser sender = load(request.senderId());
+            GeoUser receiver = load(request.receiverId());
+            if (sender == null || receiver == null) {
+                throw new IllegalArgumentException("Friend request between unregistered users " + request.senderId()
+                        + " and " + request.receiverId());
+            }
+            sender.sendFriendRequest(receiver, request);
+            friendRequests.put(requestKey(request.senderId(), request.receiverId()), encodeRequest(request));
+            writeRequestIds(sender);
+            writeRequestIds(receiver);
+            dirty.set(true);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean acceptFriendRequest(GeoUser sender, GeoUser receiver) {
+        return locked(sender.getUserId(), receiver.getUserId(), () -> {
+            GeoUser storedSender = load(sender.getUserId());
+            GeoUser storedReceiver = load(receiver.getUserId());
+            if (storedSender == null || storedReceiver == null || !storedReceiver.acceptFriendRequest(storedSender)) {
+                return false;
+            }
+            friendRequests.remove(requestKey(sender.getUserId(), receiver.getUserId()));
+            writeRequestIds(storedSender);
+            writeRequestIds(storedReceiver);
+            writeFriends(storedSender);
+            writeFriends(storedReceiver);
+            dirty.set(true);
+            return true;
+        });
+    }
+
+    @Override
+    public boolean declineFriendRequest(GeoUser sender, GeoUser receiver) {
+        return locked(sender.getUserId(), receiver.getUserId(), () -> {
+            GeoUser storedSender = load(sender.getUserId());
+            GeoUser storedReceiver = load(receiver.getUserId());
+            if (storedSender == null || storedReceiver == null) {
+                return false;
+            }
+            boolean declined = storedReceiver.declineFriendRequest(storedSender);
+            friendRequests.remove(requestKey(sender.getUserId(), receiver.getUserId()));
+            writeRequestIds(storedSender);
+            writeRequestIds(storedReceiver);
+            dirty.set(true);
+            return declined;
+        });
+    }
+
+    @Override
+    public void removeFriendship(GeoUser first, GeoUser second) {
+        locked(first.getUserId(), second.getUserId(), () -> {
+            GeoUser storedFirst = load(first.getUserId());
+            GeoUser storedSecond = load(second.getUserId());
+            if (storedFirst == null || storedSecond == null) {
+                return null;
+            }
+            storedFirst.removeFriend(storedSecond);
+            storedSecond.removeFriend(storedFirst);
+            writeFriends(storedFirst);
+            writeFriends(storedSecond);
+            dirty.set(true);
+            return null;
+        });
+    }
+
+    /**
+     * Commits pending changes, the database itself is closed by the bot
+     */
+    @Override
+    public void close() {
+        if (committer != null) {
+            committer.shutdown();
+        }
+        commitIfDirty();
+    }
+
+    /*
+     * Records
+     */
+
+    private static long[] idsOf(long[] ids) {
+        return ids == null ? NO_IDS : ids;
+    }
+
+    private static String requestKey(long senderId, long receiverId) {
+        return senderId + ":" + receiverId;
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static byte[] encodeUser(GeoUser user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(user.getChatId());
+            writeNullable(out, user.getUser().getFirstName());
+            writeNullable(out, user.getUser().getLastName());
+            writeNullable(out, user.getUser().getUserName());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static GeoUser decodeUser(long userId, byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            User user = new User();
+            user.setId(userId);
+            user.setIsBot(false);
+            long chatId = in.readLong();
+            user.setFirstName(readNullable(in));
+            user.setLastName(readNullable(in));
+            user.setUserName(readNullable(in));
+            return new GeoUser(user, chatId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupted record of user " + userId, e);
+        }
+    }
+
+    private static byte[] encodeRequest(GeoUser.FriendRequest request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(request.senderId());
+            out.writeLong(request.receiverId());
+            out.writeUTF(request.text());
+            out.writeBoolean(request.inlineMessageId() != null);
+            out.writeInt(request.inlineMessageId() == null ? 0 : request.inlineMessageId());
+            out.writeLong(request.sentAtMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static GeoUser.FriendRequest decodeRequest(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            long senderId = in.readLong();
+            long receiverId = in.readLong();
+            String text = in.readUTF();
+            boolean hasMessageId = in.readBoolean();
+            int messageId = in.readInt();
+            // requests stored before the send time was stored are treated as sent now
+            long sentAtMillis = in.available() >= Long.BYTES ? in.readLong() : System.currentTimeMillis();
+            return new GeoUser.FriendRequest(senderId, receiverId, text, hasMessageId ? messageId : null,
+                    sentAtMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupted friend request record", e);
+        }
+    }
+}
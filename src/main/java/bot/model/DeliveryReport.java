@@ -0,0 +1,57 @@
+package bot.model;
+
+import java.util.List;
+
+/**
+ * Result of sending one message to many chats, containing the outcome for every recipient
+ *
+ * @param deliveries outcome of the delivery for every chat
+ */
+public record DeliveryReport(List<Delivery> deliveries) {
+    /**
+     * Outcome of the delivery to a single chat
+     *
+     * @param chatId    id of the chat
+     * @param delivered true if message was delivered
+     * @param messageId id of the delivered message in the chat, {@code null} if message was not delivered
+     * @param error     description of the failure, {@code null} if message was delivered
+     */
+    public record Delivery(long chatId, boolean delivered, Integer messageId, String error) {
+        static Delivery delivered(long chatId, int messageId) {
+            return new Delivery(chatId, true, messageId, null);
+        }
+
+        static Delivery failed(long chatId, String error) {
+            return new Delivery(chatId, false, null, error);
+        }
+    }
+
+    public DeliveryReport {
+        deliveries = List.copyOf(deliveries);
+    }
+
+    public int deliveredCount() {
+        return (int) deliveries.stream().filter(Delivery::delivered).count();
+    }
+
+    /**
+     * @return deliveries that failed
+     */
+    public List<Delivery> failed() {
+        return deliveries.stream().filter(delivery -> !delivery.delivered()).toList();
+    }
+
+    /**
+     * @return true if message was delivered to all chats
+     */
+    public boolean allDelivered() {
+        return deliveredCount() == deliveries.size();
+    }
+
+    /**
+     * @return true if message was not delivered to any chat
+     */
+    public boolean noneDelivered() {
+        return deliveredCount() == 0;
+    }
+}
@@ -0,0 +1,245 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.DaemonThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Concurrent map whose entries expire {@code ttl} after they were put and which never holds more than
+ * {@code maxSize} entries: when it is full, the entry closest to expiry is dropped early and handed to {@code onEvicted}.
+ * Expired entries are removed and handed to the {@code onExpired} callback, so the state they stand for can be cleaned up.
+ * Callbacks are always run on the ticker thread and never while the wheel is locked, so a slow callback delays
+ * only the other callbacks and never the threads putting the entries.
+ * <p>
+ * Expiry is driven by a hashed timer wheel of {@value #WHEEL_SIZE} buckets covering one ttl, so a tick only looks
+ * at the entries of a single bucket, and entries expire at most ttl / {@value #WHEEL_SIZE} late.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class ExpiringStore<K, V> {
+    private static final Logger logger = LoggerFactory.getLogger(ExpiringStore.class);
+    private static final int WHEEL_SIZE = 512;
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long deadlineNanos;
+        // index of the wheel bucket holding the entry
+        private final int bucket;
+
+        private Entry(K key, V value, long deadlineNanos, int bucket) {
+            this.key = key;
+            this.value = value;
+            this.deadlineNanos = deadlineNanos;
+            this.bucket = bucket;
+        }
+    }
+
+    private final Map<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    // entries by the tick they expire at. Replaced and removed entries are removed from their bucket right away,
+    // so the wheel holds at most maxSize entries (a bucket entry missing from the map is only left by a race
+    // of put and remove of the same key and is dropped by the tick)
+    private final Set<Entry<K, V>>[] wheel;
+    private final long ttlNanos;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final int maxSize;
+    private final BiConsumer<K, V> onExpired;
+    private final BiConsumer<K, V> onEvicted;
+    private final ScheduledExecutorService ticker;
+    // last tick whose bucket was processed, guarded by the wheel
+    private long processedTick;
+
+    /**
+     * @param name      name of the ticker thread
+     * @param ttlMillis time in milliseconds the entries are kept for
+     * @param maxSize   max amount of entries
+     * @param onExpired callback receiving expired entries and the ones expired early as the store was full,
+     *                  is not called for the removed ones
+     */
+    public ExpiringStore(String name, long ttlMillis, int maxSize, BiConsumer<K, V> onExpired) {
+        this(name, ttlMillis, maxSize, onExpired, onExpired);
+    }
+
+    /**
+     * @param name      name of the ticker thread
+     * @param ttlMillis time in milliseconds the entries are kept for
+     * @param maxSize   max amount of entries
+     * @param onExpired callback receiving expired entries, is not called for the removed ones
+     * @param onEvicted callback receiving entries that were dropped before their ttl as the store was full
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringStore(String name, long ttlMillis, int maxSize, BiConsumer<K, V> onExpired,
+                         BiConsumer<K, V> onEvicted) {
+        if (ttlMillis <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("Ttl and size of the store should be positive!");
+        }
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        // one rotation of the wheel is longer than ttl, so a bucket never holds entries of two rotations
+        this.tickNanos = Math.max(1_000_000L, ttlNanos / (WHEEL_SIZE - 1) + 1);
+        this.maxSize = maxSize;
+        this.onExpired = onExpired;
+        this.onEvicted = onEvicted;
+        this.wheel = new Set[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = ConcurrentHashMap.newKeySet();
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named(name));
+        ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Puts the value, replacing the previous value of the key. Ttl of the key starts again.
+     */
+    public void put(K key, V value) {
+        putUntil(key, value, System.nanoTime() + ttlNanos);
+    }
+
+    /**
+     * Puts the value whose ttl started at {@code startedAtMillis} (wall clock), e.g. before a restart,
+     * so it is kept only for the rest of its ttl. Value whose ttl is already over expires with the next tick.
+     */
+    public void put(K key, V value, long startedAtMillis) {
+        long ageNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - startedAtMillis));
+        putUntil(key, value, System.nanoTime() + Math.max(0, ttlNanos - ageNanos));
+    }
+
+    private void putUntil(K key, V value, long deadline) {
+        // entry is processed by the first tick at or after its deadline, but never by a tick that may already be over
+        long tick = Math.max((deadline - startNanos + tickNanos - 1) / tickNanos,
+                (System.nanoTime() - startNanos) / tickNanos + 1);
+        Entry<K, V> entry = new Entry<>(key, value, deadline, (int) (tick % WHEEL_SIZE));
+        Entry<K, V> replaced = entries.put(key, entry);
+        if (replaced != null) {
+            wheel[replaced.bucket].remove(replaced);
+        }
+        wheel[entry.bucket].add(entry);
+        while (entries.size() > maxSize) {
+            Entry<K, V> oldest = removeOldest();
+            if (oldest == null) {
+                break;
+            }
+            // entry is already removed, so the store stays bounded, only its callback waits for the ticker
+            try {
+                ticker.execute(() -> runCallback(onEvicted, oldest));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Store is shut down, expired entry {} is not cleaned up", oldest.key);
+            }
+        }
+    }
+
+    /**
+     * @return value of the key, or {@code null} if there is none or it has expired
+     */
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        return entry == null || entry.deadlineNanos - System.nanoTime() <= 0 ? null : entry.value;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Removes the key without calling the {@code onExpired} callback
+     *
+     * @return removed value, or {@code null} if there was none
+     */
+    public V remove(K key) {
+        Entry<K, V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        wheel[entry.bucket].remove(entry);
+        return entry.value;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void runCallback(BiConsumer<K, V> callback, Entry<K, V> entry) {
+        try {
+            callback.accept(entry.key, entry.value);
+        } catch (RuntimeException e) {
+            logger.error("Cleaning up expired entry failed: {}", e.getMessage());
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long currentTick = (now - startNanos) / tickNanos;
+        // entries are removed under the lock, callbacks are run after it is released
+        List<Entry<K, V>> expired = new ArrayList<>();
+        synchronized (wheel) {
+            // processes the buckets of the ticks that were skipped, if the ticker was late
+            while (processedTick < currentTick) {
+                processedTick++;
+                Set<Entry<K, V>> bucket = wheel[(int) (processedTick % WHEEL_SIZE)];
+                bucket.removeIf(entry -> {
+                    if (entries.get(entry.key) != entry) {
+                        return true;
+                    }
+                    if (entry.deadlineNanos - now <= 0) {
+                        if (entries.remove(entry.key, entry)) {
+                            expired.add(entry);
+                        }
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+        for (Entry<K, V> entry : expired) {
+            runCallback(onExpired, entry);
+        }
+    }
+
+    /**
+     * Removes the entry closest to its deadline, without calling the {@code onExpired} callback
+     *
+     * @return removed entry, or {@code null} if there was no entry to remove
+     */
+    private Entry<K, V> removeOldest() {
+        synchronized (wheel) {
+            for (long tick = processedTick + 1; tick <= processedTick + WHEEL_SIZE; tick++) {
+                Set<Entry<K, V>> bucket = wheel[(int) (tick % WHEEL_SIZE)];
+                for (Entry<K, V> entry : bucket) {
+                    bucket.remove(entry);
+                    if (entries.remove(entry.key, entry)) {
+                        return entry;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops expiring the entries, callbacks of the entries that already expired are still run
+     */
+    public void shutdown() {
+        ticker.shutdown();
+    }
+
+    /**
+     * Waits until the callbacks of the entries that expired before {@link #shutdown()} have run
+     *
+     * @return true if all of them have run within the timeout
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return ticker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
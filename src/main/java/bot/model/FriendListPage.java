@@ -0,0 +1,74 @@
+package bot.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of the friend list of a user. Friends are ordered by their ids, and pages are addressed by the id
+ * of a friend next to them (cursor) instead of a position, so pages do not shift when friends are added or removed
+ * between two presses. Building a page costs a binary search plus the friends on the page, no matter how many
+ * friends the user has.
+ *
+ * @param friends       friends on the page
+ * @param firstPosition position of the first friend of the page in the whole list, starting at 0
+ * @param firstId       id of the first friend of the page, cursor of the previous page
+ * @param lastId        id of the last friend of the page, cursor of the next page
+ * @param hasPrevious   true if there are friends before the page
+ * @param hasNext       true if there are friends after the page
+ */
+public record FriendListPage(List<GeoUser> friends, int firstPosition, long firstId, long lastId,
+                             boolean hasPrevious, boolean hasNext) {
+    public static final int PAGE_SIZE = 5;
+
+    public boolean isEmpty() {
+        return friends.isEmpty();
+    }
+
+    /**
+     * @return first page of the friends
+     */
+    public static FriendListPage first(GeoUserStorage storage, SortedLongSet friendIds) {
+        return fromIndex(storage, friendIds, 0);
+    }
+
+    /**
+     * @param cursor id of the last friend of the previous page, does not have to be a friend anymore
+     * @return page of the friends with ids greater than {@code cursor}, or the last page if there are none
+     */
+    public static FriendListPage after(GeoUserStorage storage, SortedLongSet friendIds, long cursor) {
+        int index = friendIds.indexOf(cursor);
+        index = index >= 0 ? index + 1 : -index - 1;
+        if (index >= friendIds.size()) {
+            index = friendIds.size() - PAGE_SIZE;
+        }
+        return fromIndex(storage, friendIds, index);
+    }
+
+    /**
+     * @param cursor id of the first friend of the next page, does not have to be a friend anymore
+     * @return page of the friends with ids less than {@code cursor}, filled up with the following friends
+     * if there are less than {@value #PAGE_SIZE} of them
+     */
+    public static FriendListPage before(GeoUserStorage storage, SortedLongSet friendIds, long cursor) {
+        int index = friendIds.indexOf(cursor);
+        index = index >= 0 ? index : -index - 1;
+        return fromIndex(storage, friendIds, index - PAGE_SIZE);
+    }
+
+    private static FriendListPage fromIndex(GeoUserStorage storage, SortedLongSet friendIds, int index) {
+        int start = Math.max(0, index);
+        int end = Math.min(friendIds.size(), start + PAGE_SIZE);
+        List<GeoUser> friends = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            GeoUser friend = storage.getUser(friendIds.get(i));
+            if (friend != null) {
+                friends.add(friend);
+            }
+        }
+        if (start == end) {
+            return new FriendListPage(friends, start, 0, 0, false, false);
+        }
+        return new FriendListPage(friends, start, friendIds.get(start), friendIds.get(end - 1),
+                start > 0, end < friendIds.size());
+    }
+}
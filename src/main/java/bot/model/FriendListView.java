@@ -0,0 +1,108 @@
+package bot.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders friend lists of the users into the text of the /friend_list messages and caches them.
+ * <p>
+ * Rendered list is reused as long as the friends of the user are the same: friend ids are an immutable set
+ * that is replaced on every change of the friend graph, so a changed graph is noticed by a single identity check
+ * and nothing has to be notified about the changes. Only whole lists are cached, so the memory used is bounded
+ * by {@code maxEntries}; lines of the friends are rendered again when a changed list is rebuilt.
+ * Lists longer than {@value #MAX_MESSAGE_LENGTH} characters are split into several messages between the lines.
+ * Least recently used lists are evicted when more than {@code maxEntries} are cached.
+ */
+public class FriendListView {
+    // max length of the text of a Telegram message
+    public static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final String HEADER = "Here are your friends:\n";
+
+    private record Rendered(SortedLongSet friendIds, List<String> messages) {
+    }
+
+    private final GeoUserStorage storage;
+    private final int maxEntries;
+    private final LinkedHashMap<Long, Rendered> lists;
+
+    /**
+     * @param storage    storage the friends are resolved from
+     * @param maxEntries max amount of users whose rendered lists are cached
+     */
+    public FriendListView(GeoUserStorage storage, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive!");
+        }
+        this.storage = storage;
+        this.maxEntries = maxEntries;
+        // access order -> iteration starts from the least recently used entry
+        this.lists = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Rendered> eldest) {
+                return size() > FriendListView.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns texts of the messages with the friend list of the {@code user}
+     *
+     * @param user user whose friend list is rendered
+     * @return messages to be sent in order, each at most {@value #MAX_MESSAGE_LENGTH} characters long,
+     * empty list if user has no friends
+     */
+    public List<String> render(GeoUser user) {
+        SortedLongSet friendIds = user.getFriendIds();
+        synchronized (this) {
+            Rendered rendered = lists.get(user.getUserId());
+            if (rendered != null && rendered.friendIds() == friendIds) {
+                return rendered.messages();
+            }
+        }
+        List<String> messages = render(friendIds);
+        synchronized (this) {
+            lists.put(user.getUserId(), new Rendered(friendIds, messages));
+        }
+        return messages;
+    }
+
+    private List<String> render(SortedLongSet friendIds) {
+        List<String> messages = new ArrayList<>(1);
+        StringBuilder sb = new StringBuilder(HEADER);
+        int i = 1;
+        for (int index = 0; index < friendIds.size(); index++) {
+            GeoUser friend = storage.getUser(friendIds.get(index));
+            if (friend == null) {
+                continue;
+            }
+            String line = line(friend);
+            // entry in form "i) friendRepresentation\n"
+            String number = String.valueOf(i++);
+            if (sb.length() + number.length() + 2 + line.length() + 1 > MAX_MESSAGE_LENGTH) {
+                messages.add(sb.toString());
+                sb.setLength(0);
+            }
+            sb.append(number).append(") ").append(line).append('\n');
+        }
+        if (i == 1) {
+            return List.of();
+        }
+        messages.add(sb.toString());
+        return List.copyOf(messages);
+    }
+
+    /**
+     * Returns string representation of a single friend that will be used in the friend list.
+     *
+     * @param friend user, whose string representation will be returned
+     * @return string representation of a single friend that will be used in the friend list
+     * in form "user.firstName user.lastName - user.userName"
+     * */
+    private static String line(GeoUser friend) {
+        String firstName = friend.getUser().getFirstName();
+        String lastName = friend.getUser().getLastName() == null ? "" : friend.getUser().getLastName();
+        return firstName + " " + lastName + " - @" + friend.getUser().getUserName();
+    }
+}
@@ -4,31 +4,47 @@ import org.telegram.telegrambots.meta.api.objects.User;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class GeoUser implements Serializable {
     private final long userId;
     private final long chatId;
     private final User user;
 
-    public static record FriendRequest(GeoUser sender, GeoUser receiver, String text, Integer inlineMessageId)
-            implements Serializable{
+    /**
+     * @param sentAtMillis wall clock time the request was sent at, unanswered requests expire relative to it
+     */
+    public static record FriendRequest(long senderId, long receiverId, String text, Integer inlineMessageId,
+                                       long sentAtMillis) implements Serializable{
+        /**
+         * Creates request that is sent now
+         */
+        public FriendRequest(long senderId, long receiverId, String text, Integer inlineMessageId) {
+            this(senderId, receiverId, text, inlineMessageId, System.currentTimeMillis());
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             FriendRequest that = (FriendRequest) o;
-            return sender.equals(that.sender) && receiver.equals(that.receiver) && text.equals(that.text);
+            return senderId == that.senderId && receiverId == that.receiverId && text.equals(that.text);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(sender, receiver, text);
+            return Objects.hash(senderId, receiverId, text);
         }
     }
 
-    private final HashMap<GeoUser, FriendRequest> incomingFriendRequests = new HashMap<>();
-    private final HashMap<GeoUser, FriendRequest> outgoingFriendRequests = new HashMap<>();
-    private final Set<GeoUser> friends = new HashSet<>();
+    // friend graph is mutated only through GeoUserStorage, while holding locks of both users
+    // (see lockPair, DbGeoUserStorage locks users by id as it may have several copies of a user).
+    // Users are referenced by id, friends are a sorted array that is replaced on every change,
+    // so readers never need a lock and the graph costs 8 bytes per friend
+    private final Map<Long, FriendRequest> incomingFriendRequests = new ConcurrentHashMap<>();
+    private final Map<Long, FriendRequest> outgoingFriendRequests = new ConcurrentHashMap<>();
+    private volatile SortedLongSet friendIds = SortedLongSet.EMPTY;
 
     public GeoUser(User user, long chatId) {
         this.chatId = chatId;
@@ -36,37 +52,87 @@ public class GeoUser implements Serializable {
         this.userId = user.getId();
     }
 
-    public void sendFriendRequest(GeoUser receiver, FriendRequest request) {
-        this.outgoingFriendRequests.put(receiver, request);
-        receiver.incomingFriendRequests.put(this, request);
+    /**
+     * Runs {@code action} while holding the locks of both users. Locks are always taken in the order of user ids,
+     * so concurrent actions on the same pair of users can't deadlock.
+     *
+     * @param first  one of the users
+     * @param second other user
+     * @param action action that mutates the friend graph of both users
+     * @return result of the action
+     */
+    static <T> T lockPair(GeoUser first, GeoUser second, Supplier<T> action) {
+        if (first == second) {
+            synchronized (first) {
+                return action.get();
+            }
+        }
+        GeoUser lower = first.userId < second.userId ? first : second;
+        GeoUser higher = lower == first ? second : first;
+        synchronized (lower) {
+            synchronized (higher) {
+                return action.get();
+            }
+        }
     }
 
-    public void acceptFriendRequest(GeoUser friend) {
-        if (incomingFriendRequests.containsKey(friend)) {
-            incomingFriendRequests.remove(friend);
-            friends.add(friend);
+    void sendFriendRequest(GeoUser receiver, FriendRequest request) {
+        this.outgoingFriendRequests.put(receiver.userId, request);
+        receiver.incomingFriendRequests.put(this.userId, request);
+    }
+
+    /**
+     * @return true if there was an incoming request from {@code friend} and it was accepted
+     */
+    boolean acceptFriendRequest(GeoUser friend) {
+        if (incomingFriendRequests.remove(friend.userId) != null) {
+            addFriend(friend);
             friend.friendRequestAccepted(this);
+            return true;
         }
+        return false;
     }
 
-    public void declineFriendRequest(GeoUser friend) {
-        incomingFriendRequests.remove(friend);
+    /**
+     * @return true if there was an incoming request from {@code friend} and it was declined
+     */
+    boolean declineFriendRequest(GeoUser friend) {
+        boolean declined = incomingFriendRequests.remove(friend.userId) != null;
         friend.friendRequestDeclined(this);
+        return declined;
     }
 
-    public void friendRequestAccepted(GeoUser friend) {
-        if (outgoingFriendRequests.containsKey(friend)) {
-            outgoingFriendRequests.remove(friend);
-            friends.add(friend);
-        }
+    private void friendRequestAccepted(GeoUser friend) {
+        outgoingFriendRequests.remove(friend.userId);
+        addFriend(friend);
+    }
+
+    private void friendRequestDeclined(GeoUser friend) {
+        outgoingFriendRequests.remove(friend.userId);
     }
 
-    public void friendRequestDeclined(GeoUser friend) {
-        outgoingFriendRequests.remove(friend);
+    void addFriend(GeoUser friend) {
+        friendIds = friendIds.with(friend.userId);
     }
 
-    public void removeFriend(GeoUser friend) {
-        friends.remove(friend);
+    void removeFriend(GeoUser friend) {
+        friendIds = friendIds.without(friend.userId);
+    }
+
+    /*
+     * Methods used by the storages to load a user, they set the state of this user only
+     */
+
+    void restoreFriends(SortedLongSet ids) {
+        friendIds = ids;
+    }
+
+    void restoreOutgoingFriendRequest(FriendRequest request) {
+        outgoingFriendRequests.put(request.receiverId(), request);
+    }
+
+    void restoreIncomingFriendRequest(FriendRequest request) {
+        incomingFriendRequests.put(request.senderId(), request);
     }
 
     public long getUserId() {
@@ -81,15 +147,28 @@ public class GeoUser implements Serializable {
         return user;
     }
 
-    public Map<GeoUser, FriendRequest> getIncomingFriendRequests() {
-        return incomingFriendRequests;
+    /**
+     * @return incoming friend requests by id of their sender
+     */
+    public Map<Long, FriendRequest> getIncomingFriendRequests() {
+        return Collections.unmodifiableMap(incomingFriendRequests);
+    }
+
+    /**
+     * @return outgoing friend requests by id of their receiver
+     */
+    public Map<Long, FriendRequest> getOutgoingFriendRequests() {
+        return Collections.unmodifiableMap(outgoingFriendRequests);
     }
 
-    public Map<GeoUser, FriendRequest> getOutgoingFriendRequests() {
-        return outgoingFriendRequests;
+    /**
+     * @return ids of the friends in ascending order, the set is a snapshot and does not change
+     */
+    public SortedLongSet getFriendIds() {
+        return friendIds;
     }
 
-    public Set<GeoUser> getFriends() {
-        return friends;
+    public boolean isFriendWith(long userId) {
+        return friendIds.contains(userId);
     }
 }
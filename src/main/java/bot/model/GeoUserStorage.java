@@ -3,16 +3,25 @@ package bot.model;
 import org.jetbrains.annotations.NotNull;
 import org.telegram.telegrambots.meta.api.objects.User;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
 
-public class GeoUserStorage {
-    // TelegramUser.id to GeoUser
-    private final Map<Long, GeoUser> users = new HashMap<>();
-
-    public Map<Long, GeoUser> getUsers() {
-        return users;
-    }
+/**
+ * Registry of all users of the bot and their friend graph: {@link HeapGeoUserStorage} keeps the whole graph
+ * on the heap, {@link DbGeoUserStorage} keeps it in the bot database and only a bounded amount of users on the heap.
+ * Storages are safe to use from multiple threads, every mutation of the friend graph updates both users at once.
+ * <p>
+ * Returned users are a view of the graph at the time they were read, the graph is mutated only through the storage.
+ */
+public interface GeoUserStorage extends Closeable {
+    /**
+     * Loads the stored users and friend graph, is called once before the storage is used
+     *
+     * @throws IOException if stored graph could not be read
+     */
+    void restore() throws IOException;
 
     /**
      * Adds a new user to the storage.
@@ -24,30 +33,20 @@ public class GeoUserStorage {
      * @return the GeoUser corresponding to the added or if already existed
      */
     @NotNull
-    public GeoUser addUser(User user, Long chatId) {
-        GeoUser geoUser;
-        if (users.containsKey(user.getId())) {
-            geoUser = users.get(user.getId());
-        } else {
-            geoUser = new GeoUser(user, chatId);
-            users.put(user.getId(), geoUser);
-        }
-        return geoUser;
-    }
+    GeoUser addUser(User user, Long chatId);
 
     /**
      * Returns the GeoUser with the given userId if it exists in the storage, otherwise returns {@code null}.
-     * Throws a UserNotRegisteredException if the user is not registered.
      *
      * @param userId the id of the user to retrieve
      * @return the GeoUser corresponding to the given userId, or {@code null} if it does not exist in the storage
      */
-    public GeoUser getUser(long userId){
-        if (!users.containsKey(userId)) {
-            return null;
-        }
-        return users.get(userId);
-    }
+    GeoUser getUser(long userId);
+
+    /**
+     * @return true if user with the id is registered
+     */
+    boolean isRegistered(long userId);
 
     /**
      * Returns the GeoUser with the given user object if it exists in the storage, otherwise adds the user
@@ -57,10 +56,55 @@ public class GeoUserStorage {
      * @param chatId the chatId corresponding to the user
      * @return the GeoUser corresponding to the given user, either retrieved from the storage or newly created
      */
-    public GeoUser getOrRegister(User user, Long chatId) {
-        if (users.containsKey(user.getId())) {
-            return users.get(user.getId());
-        }
-        return addUser(user, chatId);
+    default GeoUser getOrRegister(User user, Long chatId) {
+        GeoUser geoUser = getUser(user.getId());
+        return geoUser != null ? geoUser : addUser(user, chatId);
     }
+
+    /**
+     * Resolves friends of the {@code user}. Friends are returned in the ascending order of their ids.
+     *
+     * @param user user whose friends to resolve
+     * @return friends of the user that are registered in the storage
+     */
+    List<GeoUser> getFriends(GeoUser user);
+
+    /**
+     * Passes every friend request that was not answered yet to the {@code action}, without collecting them first
+     */
+    void forEachPendingFriendRequest(Consumer<GeoUser.FriendRequest> action);
+
+    /**
+     * Registers friend request from {@code request.senderId()} to {@code request.receiverId()} on both sides
+     *
+     * @param request friend request to register
+     * @throws IllegalArgumentException if sender or receiver of the request is not registered
+     */
+    void sendFriendRequest(GeoUser.FriendRequest request);
+
+    /**
+     * Accepts friend request from {@code sender} to {@code receiver}, making them friends on both sides at once
+     *
+     * @param sender   sender of the friend request
+     * @param receiver receiver of the friend request
+     * @return true if there was a pending request and it was accepted
+     */
+    boolean acceptFriendRequest(GeoUser sender, GeoUser receiver);
+
+    /**
+     * Declines friend request from {@code sender} to {@code receiver} on both sides at once
+     *
+     * @param sender   sender of the friend request
+     * @param receiver receiver of the friend request
+     * @return true if there was a pending request and it was declined
+     */
+    boolean declineFriendRequest(GeoUser sender, GeoUser receiver);
+
+    /**
+     * Removes {@code first} and {@code second} from each other's friends at once
+     *
+     * @param first  user that removes the friend
+     * @param second friend that is removed
+     */
+    void removeFriendship(GeoUser first, GeoUser second);
 }
@@ -0,0 +1,62 @@
+package bot.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Persistence of the users and their friend graph. {@link HeapGeoUserStorage} reports every mutation
+ * of the graph to its persistence, after the mutation was applied in memory and while locks of the mutated users
+ * are still held, so mutations of the same users are reported in the order they were applied.
+ */
+public interface GraphPersistence extends Closeable {
+    /**
+     * Persistence that keeps nothing, the graph lives only in memory
+     */
+    GraphPersistence NONE = new GraphPersistence() {
+        @Override
+        public void restore(HeapGeoUserStorage storage) {
+        }
+
+        @Override
+        public void userRegistered(GeoUser user) {
+        }
+
+        @Override
+        public void friendRequestSent(GeoUser.FriendRequest request) {
+        }
+
+        @Override
+        public void friendRequestAccepted(GeoUser sender, GeoUser receiver) {
+        }
+
+        @Override
+        public void friendRequestDeclined(GeoUser sender, GeoUser receiver) {
+        }
+
+        @Override
+        public void friendshipRemoved(GeoUser first, GeoUser second) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Loads persisted users and friend graph into the {@code storage}. Is called once, before the storage is used.
+     *
+     * @param storage empty storage to load the graph into
+     * @throws IOException if persisted graph could not be read
+     */
+    void restore(HeapGeoUserStorage storage) throws IOException;
+
+    void userRegistered(GeoUser user);
+
+    void friendRequestSent(GeoUser.FriendRequest request);
+
+    void friendRequestAccepted(GeoUser sender, GeoUser receiver);
+
+    void friendRequestDeclined(GeoUser sender, GeoUser receiver);
+
+    void friendshipRemoved(GeoUser first, GeoUser second);
+}
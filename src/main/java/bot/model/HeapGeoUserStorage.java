@@ -0,0 +1,249 @@
+package bot.model;
+
+import org.jetbrains.annotations.NotNull;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Storage that keeps all users and the whole friend graph on the heap. Storage is safe to use from multiple threads:
+ * registration is atomic and every mutation of the friend graph updates both users at once, while holding the locks
+ * of both of them. Every mutation is reported to the {@link GraphPersistence} of the storage.
+ */
+public class HeapGeoUserStorage implements GeoUserStorage {
+    // TelegramUser.id to GeoUser
+    private final Map<Long, GeoUser> users = new ConcurrentHashMap<>();
+    private final GraphPersistence persistence;
+    // friends restored by the persistence and not yet merged into the friend sets, by user id
+    private final Map<Long, RestoredFriends> restoredFriends = new HashMap<>();
+
+    /**
+     * Creates storage that keeps users only in memory
+     */
+    public HeapGeoUserStorage() {
+        this(GraphPersistence.NONE);
+    }
+
+    /**
+     * @param persistence persistence every mutation will be reported to, call {@code restore()} to load the
+     *                    persisted graph before using the storage
+     */
+    public HeapGeoUserStorage(GraphPersistence persistence) {
+        this.persistence = persistence;
+    }
+
+    /**
+     * Loads the persisted users and friend graph into the storage
+     *
+     * @throws IOException if persisted graph could not be read
+     */
+    @Override
+    public void restore() throws IOException {
+        persistence.restore(this);
+        mergeRestoredFriends();
+    }
+
+    /**
+     * @return all users of the storage by their id
+     */
+    public Map<Long, GeoUser> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    @NotNull
+    @Override
+    public GeoUser addUser(User user, Long chatId) {
+        return users.computeIfAbsent(user.getId(), id -> {
+            GeoUser geoUser = new GeoUser(user, chatId);
+            persistence.userRegistered(geoUser);
+            return geoUser;
+        });
+    }
+
+    @Override
+    public GeoUser getUser(long userId){
+        return users.get(userId);
+    }
+
+    @Override
+    public boolean isRegistered(long userId) {
+        return users.containsKey(userId);
+    }
+
+    @Override
+    public List<GeoUser> getFriends(GeoUser user) {
+        SortedLongSet friendIds = user.getFriendIds();
+        List<GeoUser> friends = new ArrayList<>(friendIds.size());
+        for (int i = 0; i < friendIds.size(); i++) {
+            GeoUser friend = users.get(friendIds.get(i));
+            if (friend != null) {
+                friends.add(friend);
+            }
+        }
+        return friends;
+    }
+
+    @Override
+    public void forEachPendingFriendRequest(Consumer<GeoUser.FriendRequest> action) {
+        for (GeoUser user : users.values()) {
+            user.getOutgoingFriendRequests().values().forEach(action);
+        }
+    }
+
+    @Override
+    public void sendFriendRequest(GeoUser.FriendRequest request) {
+        GeoUser sender = users.get(request.senderId());
+        GeoUser receiver = users.get(request.receiverId());
+        if (sender == null || receiver == null) {
+            throw new IllegalArgumentException("Friend request between unregistered users " + request.senderId()
+                    + " and " + request.receiverId());
+        }
+        GeoUser.lockPair(sender, receiver, () -> {
+            sender.sendFriendRequest(receiver, request);
+            persistence.friendRequestSent(request);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean acceptFriendRequest(GeoUser sender, GeoUser receiver) {
+        return GeoUser.lockPair(sender, receiver, () -> {
+            boolean accepted = receiver.acceptFriendRequest(sender);
+            if (accepted) {
+                persistence.friendRequestAccepted(sender, receiver);
+            }
+            return accepted;
+        });
+    }
+
+    @Override
+    public boolean declineFriendRequest(GeoUser sender, GeoUser receiver) {
+        return GeoUser.lockPair(sender, receiver, () -> {
+            boolean declined = receiver.declineFriendRequest(sender);
+            if (declined) {
+                persistence.friendRequestDeclined(sender, receiver);
+            }
+            return declined;
+        });
+    }
+
+    @Override
+    public void removeFriendship(GeoUser first, GeoUser second) {
+        GeoUser.lockPair(first, second, () -> {
+            first.removeFriend(second);
+            second.removeFriend(first);
+            persistence.friendshipRemoved(first, second);
+            return null;
+        });
+    }
+
+    /**
+     * Closes the persistence of the storage, writing out the pending mutations
+     */
+    @Override
+    public void close() throws IOException {
+        persistence.close();
+    }
+
+    /*
+     * Methods used by the persistence to restore the graph. They don't report anything back to the persistence and
+     * are not synchronized, as the graph is restored before the storage is used. All of them just set the state of
+     * the given pair of users, so replaying the same mutation twice does not change the result. Restored friendships
+     * become visible in the friend sets only after {@code restore()} returns.
+     */
+
+    GeoUser restoreUser(User user, long chatId) {
+        return users.computeIfAbsent(user.getId(), id -> new GeoUser(user, chatId));
+    }
+
+    void restoreFriendRequest(GeoUser.FriendRequest request) {
+        GeoUser sender = users.get(request.senderId());
+        GeoUser receiver = users.get(request.receiverId());
+        if (sender != null && receiver != null) {
+            sender.sendFriendRequest(receiver, request);
+        }
+    }
+
+    /**
+     * Friendship is only collected, as adding friends one by one copies the friend set on every edge.
+     * Collected friends are merged into the friend sets once the whole graph is restored.
+     */
+    void restoreFriendship(long senderId, long receiverId) {
+        GeoUser sender = users.get(senderId);
+        GeoUser receiver = users.get(receiverId);
+        if (sender != null && receiver != null) {
+            receiver.declineFriendRequest(sender);
+            restoredFriends.computeIfAbsent(senderId, id -> new RestoredFriends()).add(receiverId);
+            restoredFriends.computeIfAbsent(receiverId, id -> new RestoredFriends()).add(senderId);
+        }
+    }
+
+    void restoreDeclinedRequest(long senderId, long receiverId) {
+        GeoUser sender = users.get(senderId);
+        GeoUser receiver = users.get(receiverId);
+        if (sender != null && receiver != null) {
+            receiver.declineFriendRequest(sender);
+        }
+    }
+
+    void restoreRemovedFriendship(long firstId, long secondId) {
+        GeoUser first = users.get(firstId);
+        GeoUser second = users.get(secondId);
+        if (first != null && second != null) {
+            // friendship may have been restored earlier and not merged yet
+            mergeRestoredFriends(first);
+            mergeRestoredFriends(second);
+            first.removeFriend(second);
+            second.removeFriend(first);
+        }
+    }
+
+    private void mergeRestoredFriends(GeoUser user) {
+        RestoredFriends friends = restoredFriends.remove(user.getUserId());
+        if (friends != null) {
+            user.restoreFriends(friends.mergeInto(user.getFriendIds()));
+        }
+    }
+
+    private void mergeRestoredFriends() {
+        for (var entry : restoredFriends.entrySet()) {
+            GeoUser user = users.get(entry.getKey());
+            user.restoreFriends(entry.getValue().mergeInto(user.getFriendIds()));
+        }
+        restoredFriends.clear();
+    }
+
+    /**
+     * Ids of friends of a single user in the order they were restored
+     */
+    private static final class RestoredFriends {
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * @return set of the collected ids and {@code friendIds}, sorted at once
+         */
+        SortedLongSet mergeInto(SortedLongSet friendIds) {
+            long[] all = Arrays.copyOf(ids, size + friendIds.size());
+            for (int i = 0; i < friendIds.size(); i++) {
+                all[size + i] = friendIds.get(i);
+            }
+            return SortedLongSet.of(all);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.User;
+import utils.DaemonThreads;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the friend graph in an append-only binary journal of mutations plus periodic compacted snapshots.
+ * <p>
+ * Mutations are encoded on the calling thread and handed over to a single writer thread, which writes all queued
+ * records at once and syncs the file once per batch (group commit), so callers never wait for the disk.
+ * Mutations are reported while the locks of the mutated users are held, so the queue is unbounded and handing
+ * a record over never blocks and can't be interrupted.
+ * Every snapshot switches the writer to a new journal generation, stores the whole graph and deletes the journals
+ * of the previous generations. On startup the snapshot is loaded and the journals written after it are replayed.
+ * <p>
+ * Journal record: {@code int payload length, payload, int CRC32 of the payload}. A torn record at the end
+ * of a journal (crash in the middle of a write) is ignored.
+ */
+public class JournalGraphPersistence implements GraphPersistence {
+    private static final Logger logger = LoggerFactory.getLogger(JournalGraphPersistence.class);
+
+    private static final String SNAPSHOT_FILE = "graph.snapshot";
+    private static final String JOURNAL_PREFIX = "graph.journal.";
+    private static final int SNAPSHOT_MAGIC = 0x47505353; // "GPSS"
+    // version 2 stores the send time of the friend requests
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_RECORD_SIZE = 1 << 16;
+
+    private static final byte REGISTER = 1;
+    private static final byte REQUEST = 2;
+    private static final byte ACCEPT = 3;
+    private static final byte DECLINE = 4;
+    private static final byte REMOVE = 5;
+    // friend request with its send time, REQUEST records were written before the send time was stored
+    private static final byte TIMED_REQUEST = 6;
+
+    private static final int MAX_BATCH = 4096;
+    // markers for the writer thread, compared by identity
+    private static final byte[] ROTATE = new byte[0];
+    private static final byte[] CLOSE = new byte[0];
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Path directory;
+    private final long snapshotIntervalMinutes;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+
+    private HeapGeoUserStorage storage;
+    private volatile boolean closed;
+    private Thread writer;
+    private ScheduledExecutorService snapshotScheduler;
+
+    // state of the writer thread
+    private long generation;
+    private FileOutputStream journalFile;
+    private BufferedOutputStream journal;
+    private volatile CompletableFuture<Long> rotation;
+
+    /**
+     * @param directory               directory with the snapshot and journals, created if missing
+     * @param snapshotIntervalMinutes how often the journal is compacted into a snapshot
+     */
+    public JournalGraphPersistence(Path directory, long snapshotIntervalMinutes) {
+        this.directory = directory;
+        this.snapshotIntervalMinutes = snapshotIntervalMinutes;
+    }
+
+    @Override
+    public void restore(HeapGeoUserStorage storage) throws IOException {
+        this.storage = storage;
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+
+        long firstGeneration = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            firstGeneration = readSnapshot(snapshot);
+        }
+        long lastGeneration = firstGeneration;
+        int replayed = 0;
+        for (var journalEntry : listJournals().entrySet()) {
+            if (journalEntry.getKey() >= firstGeneration) {
+                replayed += replay(journalEntry.getValue());
+            }
+            lastGeneration = Math.max(lastGeneration, journalEntry.getKey());
+        }
+        logger.info("Restored {} users and replayed {} journal records in {} ms", storage.getUsers().size(), replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+
+        // always continue in a new journal, so nothing is appended after a possibly torn record
+        openJournal(lastGeneration + 1);
+        writer = new Thread(this::writeLoop, "graph-journal");
+        writer.setDaemon(true);
+        writer.start();
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(
+                DaemonThreads.named("graph-snapshot"));
+        snapshotScheduler.scheduleWithFixedDelay(this::snapshotSafely, snapshotIntervalMinutes, snapshotIntervalMinutes,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return journal files sorted by their generation
+     */
+    private TreeMap<Long, Path> listJournals() throws IOException {
+        TreeMap<Long, Path> journals = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    journals.put(Long.parseLong(file.getFileName().toString().substring(JOURNAL_PREFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unknown file {} in the journal directory", file);
+                }
+            }
+        }
+        return journals;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeUser(DataOutputStream out, GeoUser user) throws IOException {
+        out.writeLong(user.getUserId());
+        out.writeLong(user.getChatId());
+        writeNullable(out, user.getUser().getFirstName());
+        writeNullable(out, user.getUser().getLastName());
+        writeNullable(out, user.getUser().getUserName());
+    }
+
+    private void readUser(DataInputStream in) throws IOException {
+        User user = new User();
+        user.setId(in.readLong());
+        user.setIsBot(false);
+        long chatId = in.readLong();
+        user.setFirstName(readNullable(in));
+        user.setLastName(readNullable(in));
+        user.setUserName(readNullable(in));
+        storage.restoreUser(user, chatId);
+    }
+
+    private static void writeRequest(DataOutputStream out, GeoUser.FriendRequest request) throws IOException {
+        out.writeLong(request.senderId());
+        out.writeLong(request.receiverId());
+        out.writeUTF(request.text());
+        out.writeBoolean(request.inlineMessageId() != null);
+        out.writeInt(request.inlineMessageId() == null ? 0 : request.inlineMessageId());
+        out.writeLong(request.sentAtMillis());
+    }
+
+    /**
+     * @param timed false for the requests written without their send time, they are treated as sent now
+     */
+    private void readRequest(DataInputStream in, boolean timed) throws IOException {
+        long senderId = in.readLong();
+        long receiverId = in.readLong();
+        String text = in.readUTF();
+        boolean hasMessageId = in.readBoolean();
+        int messageId = in.readInt();
+        long sentAtMillis = timed ? in.readLong() : System.currentTimeMillis();
+        storage.restoreFriendRequest(new GeoUser.FriendRequest(senderId, receiverId, text,
+                hasMessageId ? messageId : null, sentAtMillis));
+    }
+
+    /*
+     * Snapshot
+     */
+
+    /**
+     * Loads snapshot into the storage
+     *
+     * @return generation of the first journal that was written after the snapshot
+     */
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("File " + snapshot + " is not a valid graph snapshot!");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Graph snapshot " + snapshot + " has unsupported version " + version);
+            }
+            long journalGeneration = in.readLong();
+            // every section is a list of entries, each prefixed with true, terminated with false
+            while (in.readBoolean()) {
+                readUser(in);
+            }
+            while (in.readBoolean()) {
+                storage.restoreFriendship(in.readLong(), in.readLong());
+            }
+            while (in.readBoolean()) {
+                readRequest(in, version >= 2);
+            }
+            return journalGeneration;
+        }
+    }
+
+    private void writeSnapshot(Path snapshot, long journalGeneration) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(snapshot.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(journalGeneration);
+            for (GeoUser user : storage.getUsers().values()) {
+                out.writeBoolean(true);
+                writeUser(out, user);
+            }
+            out.writeBoolean(false);
+            for (GeoUser user : storage.getUsers().values()) {
+                SortedLongSet friendIds = user.getFriendIds();
+                // every friendship is stored once, ids are sorted so only the tail of the set is written
+                for (int i = friendIds.size() - 1; i >= 0 && friendIds.get(i) > user.getUserId(); i--) {
+                    out.writeBoolean(true);
+                    out.writeLong(user.getUserId());
+                    out.writeLong(friendIds.get(i));
+                }
+            }
+            out.writeBoolean(false);
+            for (GeoUser user : storage.getUsers().values()) {
+                for (GeoUser.FriendRequest request : user.getOutgoingFriendRequests().values()) {
+                    out.writeBoolean(true);
+                    writeRequest(out, request);
+                }
+            }
+            out.writeBoolean(false);
+            out.flush();
+            file.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Switches the writer to a new journal, stores the graph into a new snapshot and deletes the journals
+     * that are covered by the snapshot. Mutations that were journaled before the switch are already applied
+     * in memory and are part of the snapshot, the later ones are replayed from the new journal.
+     */
+    public void snapshot() throws IOException, InterruptedException {
+        if (closed) {
+            throw new IOException("Graph journal is closed!");
+        }
+        CompletableFuture<Long> rotated = new CompletableFuture<>();
+        rotation = rotated;
+        queue.offer(ROTATE);
+        long journalGeneration;
+        try {
+            journalGeneration = rotated.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Journal rotation failed", e.getCause());
+        }
+        long started = System.nanoTime();
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        writeSnapshot(temporary, journalGeneration);
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        for (var journalEntry : listJournals().headMap(journalGeneration).values()) {
+            Files.deleteIfExists(journalEntry);
+        }
+        logger.info("Graph snapshot written in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void snapshotSafely() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            logger.error("Writing graph snapshot failed! {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Journal
+     */
+
+    /**
+     * Replays journal into the storage
+     *
+     * @return amount of replayed records
+     */
+    private int replay(Path journalPath) throws IOException {
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath), BUFFER_SIZE))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        logger.warn("Corrupted record in {} after {} records, ignoring the rest", journalPath, records);
+                        return records;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        logger.warn("Corrupted record in {} after {} records, ignoring the rest", journalPath, records);
+                        return records;
+                    }
+                } catch (EOFException e) {
+                    // end of the journal, or a torn last record
+                    return records;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                records++;
+            }
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case REGISTER -> readUser(in);
+            case REQUEST -> readRequest(in, false);
+            case TIMED_REQUEST -> readRequest(in, true);
+            case ACCEPT -> storage.restoreFriendship(in.readLong(), in.readLong());
+            case DECLINE -> storage.restoreDeclinedRequest(in.readLong(), in.readLong());
+            case REMOVE -> storage.restoreRemovedFriendship(in.readLong(), in.readLong());
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private void openJournal(long newGeneration) throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        generation = newGeneration;
+        journalFile = new FileOutputStream(directory.resolve(JOURNAL_PREFIX + newGeneration).toFile(), true);
+        journal = new BufferedOutputStream(journalFile, BUFFER_SIZE);
+    }
+
+    /**
+     * Writes and syncs everything that was written since the last commit
+     */
+    private void commit() throws IOException {
+        journal.flush();
+        journalFile.getChannel().force(false);
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean closing = false;
+                for (byte[] record : batch) {
+                    if (record == ROTATE) {
+                        commit();
+                        openJournal(generation + 1);
+                        rotation.complete(generation);
+                    } else if (record == CLOSE) {
+                        closing = true;
+                    } else {
+                        journal.write(record);
+                    }
+                }
+                commit();
+                batch.clear();
+                if (closing) {
+                    journal.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Writing graph journal failed, further mutations are not persisted! {}", e.getMessage());
+            closed = true;
+            if (rotation != null) {
+                rotation.completeExceptionally(e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encodes record and queues it for the writer thread
+     */
+    private void append(byte type, RecordWriter recordWriter) {
+        if (closed) {
+            logger.error("Graph journal is closed, mutation {} is not persisted!", type);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            recordWriter.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+        record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+        // never blocks, the queue is unbounded
+        queue.offer(record.array());
+    }
+
+    @Override
+    public void userRegistered(GeoUser user) {
+        append(REGISTER, out -> writeUser(out, user));
+    }
+
+    @Override
+    public void friendRequestSent(GeoUser.FriendRequest request) {
+        append(TIMED_REQUEST, out -> writeRequest(out, request));
+    }
+
+    @Override
+    public void friendRequestAccepted(GeoUser sender, GeoUser receiver) {
+        append(ACCEPT, out -> {
+            out.writeLong(sender.getUserId());
+            out.writeLong(receiver.getUserId());
+        });
+    }
+
+    @Override
+    public void friendRequestDeclined(GeoUser sender, GeoUser receiver) {
+        append(DECLINE, out -> {
+            out.writeLong(sender.getUserId());
+            out.writeLong(receiver.getUserId());
+        });
+    }
+
+    @Override
+    public void friendshipRemoved(GeoUser first, GeoUser second) {
+        append(REMOVE, out -> {
+            out.writeLong(first.getUserId());
+            out.writeLong(second.getUserId());
+        });
+    }
+
+    /**
+     * Writes all queued mutations and stops the writer
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed || writer == null) {
+            return;
+        }
+        closed = true;
+        snapshotScheduler.shutdownNow();
+        queue.offer(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the graph journal");
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package bot.model;
 
-import bot.model.CallbackQueryDataFactory;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageReplyMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
@@ -17,35 +16,109 @@ import java.util.Map;
 
 /**
  * Class that is responsible for creating all keyboards i.e. Inline or not
+ * <p>
+ * Keyboards without parameters are built once and shared by all messages, so they must never be modified.
+ * Keyboards with parameters only create the buttons that carry the parameters, the rest of them is shared.
  * */
 public class KeyboardFactory {
     // abort button that is used for all reply keyboard markups (not inline)
     private static final KeyboardButton abortButton = new KeyboardButton(Constants.ABORT_BUTTON);
 
+    private static final ReplyKeyboardMarkup addFriendKeyboard = ReplyKeyboardMarkup
+            .builder()
+            .resizeKeyboard(true)
+            .oneTimeKeyboard(true)
+            .keyboardRow(
+                    new KeyboardRow(
+                            List.of(KeyboardButton
+                                            .builder()
+                                            .text(Constants.FriendRequestConstants.ADD_FRIEND)
+                                            .requestUser(KeyboardButtonRequestUser.builder()
+                                                    // dummy id as we only need one
+                                                    .requestId("1")
+                                                    .build())
+                                            .build(),
+                                    abortButton)
+                    )
+            )
+            .build();
+
+    private static final ReplyKeyboardMarkup shareLocationKeyboard = ReplyKeyboardMarkup
+            .builder()
+            .resizeKeyboard(true)
+            .oneTimeKeyboard(true)
+            .keyboardRow(
+                    new KeyboardRow(
+                            List.of(KeyboardButton.builder()
+                                            .text(Constants.SHARE_LOCATION_BUTTON)
+                                            .requestLocation(true)
+                                            .build(),
+                                    abortButton)
+                    )
+            ).build();
+
+    private static final ReplyKeyboardRemove removeKeyboard = ReplyKeyboardRemove
+            .builder()
+            .removeKeyboard(true)
+            .build();
+
+    private static final ReplyKeyboardMarkup clearKeyboard = ReplyKeyboardMarkup
+            .builder()
+            .keyboard(List.of(new KeyboardRow(new ArrayList<>())))
+            .build();
+
+    private static final InlineKeyboardMarkup removeInlineKeyboard = InlineKeyboardMarkup
+            .builder()
+            .keyboard(List.of())
+            .build();
+
+    /**
+     * Keyboards and buttons whose callback data is constant. Callback data is signed with the key from configuration,
+     * so they are built on the first use and not when the factory is loaded.
+     */
+    private static final class CallbackKeyboards {
+        private static final InlineKeyboardMarkup friendRequestCommentKeyboard = inlineKeyboard(List.of(
+                inlineButton(Constants.FriendRequestConstants.SEND_WITHOUT_COMMENT,
+                        CallbackQueryDataFactory.FriendRequestFlow.getConfirmCallback()),
+                inlineButton(Constants.FriendRequestConstants.ABORT_SENDING,
+                        CallbackQueryDataFactory.FriendRequestFlow.getAbortCallback())));
+
+        private static final InlineKeyboardMarkup friendRequestConfirmKeyboard = inlineKeyboard(List.of(
+                inlineButton(Constants.FriendRequestConstants.SEND,
+                        CallbackQueryDataFactory.FriendRequestFlow.getConfirmCallback()),
+                inlineButton(Constants.FriendRequestConstants.ABORT_SENDING,
+                        CallbackQueryDataFactory.FriendRequestFlow.getAbortCallback())));
+
+        private static final InlineKeyboardButton removeFriendAbortButton =
+                inlineButton(Constants.RemoveFriendConstants.ABORT, CallbackQueryDataFactory.RemoveFriend.getAbortCallback());
+
+        // last row of the list of friends to remove
+        private static final List<InlineKeyboardButton> removeFriendAbortRow = List.of(removeFriendAbortButton);
+    }
+
+    private static InlineKeyboardButton inlineButton(String text, String callbackData) {
+        InlineKeyboardButton button = new InlineKeyboardButton(text);
+        button.setCallbackData(callbackData);
+        return button;
+    }
+
+    private static InlineKeyboardMarkup inlineKeyboard(List<List<InlineKeyboardButton>> rows) {
+        InlineKeyboardMarkup keyboardMarkup = new InlineKeyboardMarkup();
+        keyboardMarkup.setKeyboard(rows);
+        return keyboardMarkup;
+    }
+
+    private static InlineKeyboardMarkup inlineKeyboard(InlineKeyboardButton... row) {
+        return inlineKeyboard(List.of(List.of(row)));
+    }
+
     /**
      * Returns a ReplyKeyboard with "Add friend" button with request user flag and an abort button
      *
      * @return ReplyKeyboard with "Add friend" button with request user flag and an abort button
      * */
     public static ReplyKeyboardMarkup addFriendKeyboard() {
-        KeyboardButton addFriendButton = KeyboardButton
-                .builder()
-                .text(Constants.FriendRequestConstants.ADD_FRIEND)
-                .requestUser(KeyboardButtonRequestUser.builder()
-                        // dummy id as we only need one
-                        .requestId("1")
-                        .build())
-                .build();
-        return ReplyKeyboardMarkup
-                .builder()
-                .resizeKeyboard(true)
-                .oneTimeKeyboard(true)
-                .keyboardRow(
-                        new KeyboardRow(
-                                List.of(addFriendButton, abortButton)
-                        )
-                )
-                .build();
+        return addFriendKeyboard;
     }
 
     /**
@@ -54,19 +127,7 @@ public class KeyboardFactory {
      * @return ReplyKeyboard with "Share location" button with request location flag and an abort button
      * */
     public static ReplyKeyboardMarkup shareLocationKeyboard() {
-        KeyboardButton locationButton = KeyboardButton.builder()
-                .text(Constants.SHARE_LOCATION_BUTTON)
-                .requestLocation(true)
-                .build();
-        return ReplyKeyboardMarkup
-                .builder()
-                .resizeKeyboard(true)
-                .oneTimeKeyboard(true)
-                .keyboardRow(
-                        new KeyboardRow(
-                                List.of(locationButton, abortButton)
-                        )
-                ).build();
+        return shareLocationKeyboard;
     }
 
     /**
@@ -75,10 +136,7 @@ public class KeyboardFactory {
      * @return ReplyKeyboardRemove with removeKeyboard flag enabled to remove the keyboard from the user
      * */
     public static ReplyKeyboardRemove removeKeyboard() {
-        return ReplyKeyboardRemove
-                .builder()
-                .removeKeyboard(true)
-                .build();
+        return removeKeyboard;
     }
 
     /**
@@ -87,10 +145,7 @@ public class KeyboardFactory {
      * @return empty ReplyKeyboardMarkup to clear the keyboard
      * */
     public static ReplyKeyboardMarkup clearKeyboard() {
-        return ReplyKeyboardMarkup
-                .builder()
-                .keyboard(List.of(new KeyboardRow(new ArrayList<>())))
-                .build();
+        return clearKeyboard;
     }
 
     /**
@@ -99,10 +154,7 @@ public class KeyboardFactory {
      * @return empty keyboard that can replace the existing inline keyboard -> clearing it on the message
      * */
     public static InlineKeyboardMarkup removeInlineKeyboard() {
-        return InlineKeyboardMarkup
-                .builder()
-                .keyboard(new ArrayList<>())
-                .build();
+        return removeInlineKeyboard;
     }
 
     /**
@@ -117,7 +169,7 @@ public class KeyboardFactory {
                 .builder()
                 .chatId(chatId)
                 .messageId(inlineMessageId)
-                .replyMarkup(removeInlineKeyboard())
+                .replyMarkup(removeInlineKeyboard)
                 .build();
     }
 
@@ -129,77 +181,27 @@ public class KeyboardFactory {
      * @return Inline Keyboard Markup for an incoming friend request notification
      * */
     public static InlineKeyboardMarkup friendRequestInlineKeyboard(String acceptCallback, String declineCallback) {
-        return InlineKeyboardMarkup.builder()
-                .keyboardRow(
-                        List.of(
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.ACCEPT)
-                                        // callback data in form (response:to:from)
-                                        .callbackData(acceptCallback)
-                                        .build(),
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.DECLINE)
-                                        .callbackData(declineCallback)
-                                        .build()
-                        )
-                )
-                .build();
+        return inlineKeyboard(
+                inlineButton(Constants.FriendRequestConstants.ACCEPT, acceptCallback),
+                inlineButton(Constants.FriendRequestConstants.DECLINE, declineCallback));
     }
 
     /**
      * Returns an InlineKeyboardMarkup with "Send request without comments" and "Abort" buttons
      *
-     * @param sendCallback callback with send instruction
-     * @param abortCallback callback with abort instruction
      * @return InlineKeyboardMarkup with "Send request without comments" and "Abort" buttons
      * */
-    public static InlineKeyboardMarkup friendRequestCommentInlineKeyboard(String sendCallback, String abortCallback) {
-        return InlineKeyboardMarkup.builder()
-                .keyboardRow(
-                        List.of(
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.SEND_WITHOUT_COMMENT)
-                                        // callback data in form (response:to:from)
-                                        .callbackData(sendCallback)
-                                        .build(),
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.ABORT_SENDING)
-                                        .callbackData(abortCallback)
-                                        .build()
-                        )
-                )
-                .build();
+    public static InlineKeyboardMarkup friendRequestCommentInlineKeyboard() {
+        return CallbackKeyboards.friendRequestCommentKeyboard;
     }
 
     /**
      * Returns an InlineKeyboardMarkup with "Send" and "Abort" buttons
      *
-     * @param confirmCallback callback with send instruction (response:to:from)
-     * @param abortCallback callback with abort instruction (response:to:from)
-     * @return InlineKeyboardMarkup with "Send request without comments" and "Abort" buttons
+     * @return InlineKeyboardMarkup with "Send" and "Abort" buttons
      * */
-    public static InlineKeyboardMarkup friendRequestConfirmInlineKeyboard(String confirmCallback, String abortCallback) {
-        return InlineKeyboardMarkup.builder()
-                .keyboardRow(
-                        List.of(
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.SEND)
-                                        // callback data in form (response:to:from)
-                                        .callbackData(confirmCallback)
-                                        .build(),
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.FriendRequestConstants.ABORT_SENDING)
-                                        .callbackData(abortCallback)
-                                        .build()
-                        )
-                )
-                .build();
+    public static InlineKeyboardMarkup friendRequestConfirmInlineKeyboard() {
+        return CallbackKeyboards.friendRequestConfirmKeyboard;
     }
 
     /**
@@ -211,52 +213,24 @@ public class KeyboardFactory {
      * @param previousBtnCallback if null, no "previous" button will be created  */
     public static InlineKeyboardMarkup removeFriendInlineKeyboard(List<Map.Entry<String, String>> buttons, String nextBtnCallback,
                                                                   String previousBtnCallback) {
-        InlineKeyboardMarkup keyboardMarkup = new InlineKeyboardMarkup();
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>(buttons.size() + 2);
         for (Map.Entry<String, String> button : buttons) {
             // setting keyboard rows with button text as key and callback data as value
-            rows.add(
-                    List.of(
-                            InlineKeyboardButton.builder()
-                                    .text(button.getKey())
-                                    .callbackData(button.getValue())
-                                    .build()
-                    )
-            );
+            rows.add(List.of(inlineButton(button.getKey(), button.getValue())));
         }
 
-        List<InlineKeyboardButton> listInstructionRow = new ArrayList<>();
-        if (previousBtnCallback != null) {
-            listInstructionRow.add(
-                    InlineKeyboardButton
-                            .builder()
-                            .text(Constants.RemoveFriendConstants.PREVIOUS)
-                            .callbackData(previousBtnCallback)
-                            .build()
-            );
+        if (previousBtnCallback != null && nextBtnCallback != null) {
+            rows.add(List.of(inlineButton(Constants.RemoveFriendConstants.PREVIOUS, previousBtnCallback),
+                    inlineButton(Constants.RemoveFriendConstants.NEXT, nextBtnCallback)));
+        } else if (previousBtnCallback != null) {
+            rows.add(List.of(inlineButton(Constants.RemoveFriendConstants.PREVIOUS, previousBtnCallback)));
+        } else if (nextBtnCallback != null) {
+            rows.add(List.of(inlineButton(Constants.RemoveFriendConstants.NEXT, nextBtnCallback)));
         }
-        if (nextBtnCallback != null) {
-            listInstructionRow.add(
-                    InlineKeyboardButton
-                            .builder()
-                            .text(Constants.RemoveFriendConstants.NEXT)
-                            .callbackData(nextBtnCallback)
-                            .build()
-            );
-        }
-        if (!listInstructionRow.isEmpty())
-            rows.add(listInstructionRow);
-
 
-        InlineKeyboardButton abortButton = InlineKeyboardButton
-                .builder()
-                .text(Constants.RemoveFriendConstants.ABORT)
-                .callbackData(CallbackQueryDataFactory.RemoveFriend.getAbortCallback())
-                .build();
         // last button is the abort button
-        rows.add(List.of(abortButton));
-        keyboardMarkup.setKeyboard(rows);
-        return keyboardMarkup;
+        rows.add(CallbackKeyboards.removeFriendAbortRow);
+        return inlineKeyboard(rows);
     }
 
     /**
@@ -266,21 +240,8 @@ public class KeyboardFactory {
      * @return {@link InlineKeyboardMarkup} with (except/abort) buttons to confirm friend deletion
      * */
     public static InlineKeyboardMarkup removeFriendConfirmInlineKeyboard(String confirmCallback) {
-        return InlineKeyboardMarkup.builder()
-                .keyboardRow(
-                        List.of(
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.RemoveFriendConstants.SEND)
-                                        .callbackData(confirmCallback)
-                                        .build(),
-                                InlineKeyboardButton
-                                        .builder()
-                                        .text(Constants.RemoveFriendConstants.ABORT)
-                                        .callbackData(CallbackQueryDataFactory.RemoveFriend.getAbortCallback())
-                                        .build()
-                        )
-                )
-                .build();
+        return inlineKeyboard(
+                inlineButton(Constants.RemoveFriendConstants.SEND, confirmCallback),
+                CallbackKeyboards.removeFriendAbortButton);
     }
 }
@@ -0,0 +1,92 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import utils.DaemonThreads;
+
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches updates onto a fixed amount of serial lanes (platform threads) by the id of the user they came from.
+ * Every lane handles its updates
+ * one by one in the order they were dispatched, so the updates of a user are never handled concurrently
+ * or out of order (which reply flows rely on), while updates of different users are handled in parallel.
+ * Lanes have bounded queues, dispatching blocks while the lane of the update is full.
+ */
+public class LaneUpdateDispatcher implements UpdateDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(LaneUpdateDispatcher.class);
+
+    private final ThreadPoolExecutor[] lanes;
+    private final Consumer<Update> handler;
+
+    /**
+     * @param lanes         amount of lanes (threads) handling the updates
+     * @param queueCapacity max amount of updates waiting in a single lane
+     * @param handler       handler of a single update
+     */
+    public LaneUpdateDispatcher(int lanes, int queueCapacity, Consumer<Update> handler) {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("Amount of lanes should be positive!");
+        }
+        this.handler = handler;
+        this.lanes = new ThreadPoolExecutor[lanes];
+        ThreadFactory threadFactory = DaemonThreads.named("updates");
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity), threadFactory, LaneUpdateDispatcher::waitForSpace);
+        }
+    }
+
+    /**
+     * Blocks the dispatching thread until the lane has space, instead of rejecting the update
+     */
+    private static void waitForSpace(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            throw new RejectedExecutionException("Update dispatcher was shut down");
+        }
+        try {
+            lane.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Dispatching of the update was interrupted", e);
+        }
+    }
+
+    /**
+     * Queues the update to the lane of its user and returns, blocks only if the lane is full
+     */
+    @Override
+    public void dispatch(Update update) {
+        // spreads sequential ids evenly over the lanes
+        long hash = UpdateDispatcher.keyOf(update) * 0x9E3779B97F4A7C15L;
+        ThreadPoolExecutor lane = lanes[Math.floorMod((int) (hash >>> 32), lanes.length)];
+        lane.execute(() -> {
+            try {
+                handler.accept(update);
+            } catch (RuntimeException e) {
+                // lane has to survive failure of a single update
+                logger.error("Handling update {} failed: {}", update.getUpdateId(), e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,243 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import services.LocationFinder;
+import utils.DaemonThreads;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Sharing of the Telegram live locations. When a user starts a live location, his friends get the usual location
+ * message, which is then edited whenever the live location moves to another place. To keep a live location
+ * of a user with many friends from turning into a storm of edits:
+ * <ul>
+ *     <li>only the newest position of a user is kept, positions that were superseded before being processed are dropped</li>
+ *     <li>position is processed only if the previous one was processed at least {@code minInterval} ago
+ *     and it moved at least {@code minDistance} from it</li>
+ *     <li>messages are edited only if their text changes, edits are sent at a fixed rate
+ *     and a newer text of a message replaces the older one still waiting to be sent</li>
+ * </ul>
+ */
+public class LiveLocationSharing {
+    private static final Logger logger = LoggerFactory.getLogger(LiveLocationSharing.class);
+    // how often pending positions of the sessions are processed
+    private static final long TICK_MILLIS = 1000;
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    private record MessageKey(long chatId, int messageId) {
+    }
+
+    private static final class Session {
+        private final Function<LocationFinder.Location, String> textFormatter;
+        private final long expiresAtNanos;
+        // newest position that was not processed yet
+        private final AtomicReference<double[]> pendingPosition = new AtomicReference<>();
+        private final AtomicBoolean geocoding = new AtomicBoolean();
+        // messages sent to the friends, set once the first location was delivered
+        private volatile List<MessageKey> messages;
+        private volatile String lastText;
+        // used only by the scheduler thread
+        private double lastLatitude;
+        private double lastLongitude;
+        private long lastProcessedNanos;
+
+        private Session(Function<LocationFinder.Location, String> textFormatter, long expiresAtNanos,
+                        double latitude, double longitude) {
+            this.textFormatter = textFormatter;
+            this.expiresAtNanos = expiresAtNanos;
+            this.lastLatitude = latitude;
+            this.lastLongitude = longitude;
+            this.lastProcessedNanos = System.nanoTime();
+        }
+    }
+
+    private final LocationSharingPipeline pipeline;
+    private final ResponseHandler responseHandler;
+    private final double minDistanceMeters;
+    private final long minIntervalNanos;
+    // user id to his live location
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // edits waiting to be sent, in the order they were requested
+    private final LinkedHashMap<MessageKey, String> pendingEdits = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param pipeline          pipeline the locations are geocoded and first delivered with
+     * @param responseHandler   handler that edits the messages
+     * @param minDistanceMeters positions closer than this to the last processed one are ignored
+     * @param minIntervalMillis positions are processed at most once per this interval for every user
+     * @param editsPerSecond    max amount of message edits per second of all live locations together
+     */
+    public LiveLocationSharing(LocationSharingPipeline pipeline, ResponseHandler responseHandler,
+                               double minDistanceMeters, long minIntervalMillis, double editsPerSecond) {
+        if (editsPerSecond <= 0) {
+            throw new IllegalArgumentException("Edit rate should be positive!");
+        }
+        this.pipeline = pipeline;
+        this.responseHandler = responseHandler;
+        this.minDistanceMeters = minDistanceMeters;
+        this.minIntervalNanos = minIntervalMillis * 1_000_000L;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                DaemonThreads.named("live-location"));
+        scheduler.scheduleWithFixedDelay(this::processPositions, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        long editPeriodMicros = Math.max(1, (long) (1_000_000 / editsPerSecond));
+        scheduler.scheduleAtFixedRate(this::sendNextEdit, editPeriodMicros, editPeriodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Starts live location of the {@code sharer}: sends the location to his friends like a usual sharing
+     * and remembers the sent messages, so they can be edited when the location changes.
+     * Previous live location of the sharer is replaced.
+     *
+     * @param sharer            user that shares his live location
+     * @param friendChatIds     chats the location will be sent to
+     * @param latitude          latitude of the starting position
+     * @param longitude         longitude of the starting position
+     * @param livePeriodSeconds how long the live location is updated
+     * @param textFormatter     function that creates the text sent to friends from the resolved location
+     * @return future of the delivery of the first location, see {@link LocationSharingPipeline#share}
+     */
+    public CompletableFuture<DeliveryReport> start(GeoUser sharer, List<Long> friendChatIds, double latitude,
+                                                   double longitude, int livePeriodSeconds,
+                                                   Function<LocationFinder.Location, String> textFormatter) {
+        Session session = new Session(textFormatter, System.nanoTime() + livePeriodSeconds * 1_000_000_000L,
+                latitude, longitude);
+        sessions.put(sharer.getUserId(), session);
+        return pipeline.share(sharer, friendChatIds, latitude, longitude, location -> {
+                    String text = textFormatter.apply(location);
+                    session.lastText = text;
+                    return text;
+                })
+                .thenApply(report -> {
+                    if (report == null || report.noneDelivered()) {
+                        sessions.remove(sharer.getUserId(), session);
+                    } else {
+                        session.messages = report.deliveries().stream()
+                                .filter(DeliveryReport.Delivery::delivered)
+                                .map(delivery -> new MessageKey(delivery.chatId(), delivery.messageId()))
+                                .toList();
+                    }
+                    return report;
+                });
+    }
+
+    /**
+     * Reports new position of the live location of the user. Returns right away, position is processed later
+     * and only if no newer position comes before that.
+     *
+     * @return false if user is not sharing his live location
+     */
+    public boolean update(long userId, double latitude, double longitude) {
+        Session session = sessions.get(userId);
+        if (session == null) {
+            return false;
+        }
+        session.pendingPosition.set(new double[]{latitude, longitude});
+        return true;
+    }
+
+    /**
+     * Stops the live location of the user, the messages keep the last location
+     */
+    public void stop(long userId) {
+        sessions.remove(userId);
+    }
+
+    public boolean isSharing(long userId) {
+        return sessions.containsKey(userId);
+    }
+
+    private static double distanceMeters(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        // equirectangular approximation, precise enough for the distances of the filter
+        double x = Math.toRadians(toLongitude - fromLongitude) * Math.cos(Math.toRadians((fromLatitude + toLatitude) / 2));
+        double y = Math.toRadians(toLatitude - fromLatitude);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_METERS;
+    }
+
+    private void processPositions() {
+        long now = System.nanoTime();
+        try {
+            Iterator<Session> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (now - session.expiresAtNanos >= 0) {
+                    iterator.remove();
+                    continue;
+                }
+                // position stays pending until the first delivery and the previous geocoding are finished
+                if (session.messages == null || session.geocoding.get()
+                        || now - session.lastProcessedNanos < minIntervalNanos) {
+                    continue;
+                }
+                double[] position = session.pendingPosition.getAndSet(null);
+                if (position == null || distanceMeters(session.lastLatitude, session.lastLongitude,
+                        position[0], position[1]) < minDistanceMeters) {
+                    continue;
+                }
+                session.lastLatitude = position[0];
+                session.lastLongitude = position[1];
+                session.lastProcessedNanos = now;
+                session.geocoding.set(true);
+                pipeline.geocode(position[0], position[1])
+                        .thenApply(session.textFormatter)
+                        .whenComplete((text, throwable) -> {
+                            session.geocoding.set(false);
+                            if (throwable != null) {
+                                logger.error("Geocoding of live location failed: {}", throwable.getMessage());
+                            } else if (!text.equals(session.lastText)) {
+                                session.lastText = text;
+                                session.messages.forEach(message -> enqueueEdit(message, text));
+                            }
+                        });
+            }
+        } catch (RuntimeException e) {
+            // exception would cancel the scheduled processing
+            logger.error("Processing live locations failed: {}", e.getMessage());
+        }
+    }
+
+    private void enqueueEdit(MessageKey message, String text) {
+        synchronized (pendingEdits) {
+            // replacing the text keeps the place of the message in the queue
+            pendingEdits.put(message, text);
+        }
+    }
+
+    private void sendNextEdit() {
+        MessageKey message;
+        String text;
+        synchronized (pendingEdits) {
+            Iterator<Map.Entry<MessageKey, String>> iterator = pendingEdits.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return;
+            }
+            Map.Entry<MessageKey, String> next = iterator.next();
+            message = next.getKey();
+            text = next.getValue();
+            iterator.remove();
+        }
+        responseHandler.editLocationMessage(message.chatId(), message.messageId(), text);
+    }
+
+    /**
+     * Stops processing of the live locations, pending edits are dropped
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Waits until the positions and the edit that were being processed when {@link #shutdown()} was called
+     * are handed over to the pipeline and the fan-out, so those can be shut down after this returns
+     *
+     * @return true if processing stopped within the timeout
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return scheduler.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,89 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import services.LocationFinder;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Asynchronous pipeline of the location sharing. Sharing is split into stages, that are run on their own executors:
+ * geocoding of the coordinates and delivery of the location text to the friends (see {@link MessageFanOut}).
+ * Result of the sharing is sent to the sharer when the last stage finishes, so the update thread is never blocked.
+ */
+public class LocationSharingPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(LocationSharingPipeline.class);
+
+    private final ResponseHandler responseHandler;
+    private final ExecutorService geocodeExecutor;
+
+    /**
+     * @param responseHandler handler that delivers the messages
+     * @param geocodeThreads  amount of threads resolving coordinates into locations, if platform threads are used
+     * @param threadMode      kind of threads the geocoding runs on
+     */
+    public LocationSharingPipeline(ResponseHandler responseHandler, int geocodeThreads, ThreadMode threadMode) {
+        this.responseHandler = responseHandler;
+        this.geocodeExecutor = threadMode.newExecutor("geocode", geocodeThreads);
+    }
+
+    /**
+     * Starts sharing location of the {@code user} with the chats of his friends and returns immediately.
+     * Sharer is notified about the result when sharing is finished.
+     *
+     * @param user          sharer of the location
+     * @param friendChatIds chats the location will be sent to
+     * @param latitude      latitude of the shared location
+     * @param longitude     longitude of the shared location
+     * @param textFormatter function that creates the text sent to friends from the resolved location
+     * @return future that completes when sharing is finished and the sharer was notified, with the delivery report
+     * or {@code null} if sharing failed
+     */
+    public CompletableFuture<DeliveryReport> share(GeoUser user, List<Long> friendChatIds, double latitude, double longitude,
+                                         Function<LocationFinder.Location, String> textFormatter) {
+        return geocode(latitude, longitude)
+                .thenApply(textFormatter)
+                .thenCompose(locationText -> responseHandler.sendLocationToFriends(user, friendChatIds, locationText))
+                .handle((report, throwable) -> {
+                    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                            ? throwable.getCause()
+                            : throwable;
+                    if (cause == null) {
+                        responseHandler.sendLocationSharingResult(user, report);
+                        return report;
+                    }
+                    // details of the failure are for the logs only, user gets a friendly message
+                    logger.error("Location sharing failed for {}: {}", user.getChatId(), cause.toString());
+                    responseHandler.sendErrorMessage(user.getChatId(), "Location sharing failed! Please try later!");
+                    return null;
+                });
+    }
+
+    /**
+     * Resolves the coordinates on the geocoding executor of the pipeline
+     *
+     * @return future of the resolved location
+     */
+    public CompletableFuture<LocationFinder.Location> geocode(double latitude, double longitude) {
+        return LocationFinder.getLocationAsync(latitude, longitude, geocodeExecutor);
+    }
+
+    /**
+     * Stops accepting new sharing requests, already started ones are finished
+     */
+    public void shutdown() {
+        geocodeExecutor.shutdown();
+    }
+
+    /**
+     * Waits until the sharing requests started before {@link #shutdown()} are geocoded. Their deliveries are handed
+     * over to the {@link MessageFanOut} by then, so the fan-out can be shut down after this returns.
+     *
+     * @return true if all of them were geocoded within the timeout
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return geocodeExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,105 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches updates into a mailbox per user, every mailbox is drained by its own virtual thread.
+ * Mailbox exists only while it has updates to handle: it is created with the first update of an idle user
+ * together with its thread and is removed by the thread once it is empty. Updates are handled on the thread
+ * of the mailbox under an {@link UpdateTimeout}, so a stuck update is interrupted after the timeout and does not block
+ * its user, and the next update is not polled before the previous one has returned.
+ */
+public class MailboxUpdateDispatcher implements UpdateDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MailboxUpdateDispatcher.class);
+
+    private static final class Mailbox {
+        // guarded by the entry of the mailbox in the map (all access goes through compute methods)
+        private final Queue<Update> updates = new ArrayDeque<>();
+    }
+
+    private final Map<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final UpdateTimeout timeout;
+    private final Consumer<Update> handler;
+
+    /**
+     * @param updateTimeoutMillis time a single update has to be handled in
+     * @param handler             handler of a single update
+     * @throws IllegalStateException if JVM does not support virtual threads
+     */
+    public MailboxUpdateDispatcher(long updateTimeoutMillis, Consumer<Update> handler) {
+        this.executor = ThreadMode.newVirtualThreadExecutor();
+        if (executor == null) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM!");
+        }
+        this.timeout = new UpdateTimeout(updateTimeoutMillis);
+        this.handler = handler;
+    }
+
+    @Override
+    public void dispatch(Update update) {
+        long key = UpdateDispatcher.keyOf(update);
+        boolean[] idle = {false};
+        mailboxes.compute(key, (id, mailbox) -> {
+            if (mailbox == null) {
+                mailbox = new Mailbox();
+                idle[0] = true;
+            }
+            mailbox.updates.add(update);
+            return mailbox;
+        });
+        if (idle[0]) {
+            executor.execute(() -> drain(key));
+        }
+    }
+
+    private void drain(long key) {
+        Update update;
+        while ((update = poll(key)) != null) {
+            Update next = update;
+            try {
+                timeout.run(() -> handler.accept(next));
+            } catch (RuntimeException e) {
+                // mailbox has to survive failure of a single update
+                logger.error("Handling update {} failed: {}", next.getUpdateId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return next update of the mailbox, or {@code null} if it is empty, in which case the mailbox is removed
+     */
+    private Update poll(long key) {
+        Update[] next = {null};
+        mailboxes.computeIfPresent(key, (id, mailbox) -> {
+            next[0] = mailbox.updates.poll();
+            return next[0] == null ? null : mailbox;
+        });
+        return next[0];
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        // watchdog is needed until the last update is handled
+        timeout.shutdown();
+        return true;
+    }
+}
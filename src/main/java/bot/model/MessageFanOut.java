@@ -0,0 +1,188 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.abilitybots.api.sender.MessageSender;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a message to many chats concurrently, while keeping within the Telegram rate limits:
+ * a global limit for the whole bot and a limit per chat. Both are enforced with {@link TokenBucket}s.
+ * Failure of one recipient does not affect the others, outcome of every delivery is returned in {@link DeliveryReport}.
+ */
+public class MessageFanOut {
+    private static final Logger logger = LoggerFactory.getLogger(MessageFanOut.class);
+    private static final int TOO_MANY_REQUESTS = 429;
+    // Telegram refuses to edit a message if its text would not change
+    private static final String NOT_MODIFIED = "message is not modified";
+    // how many times sending to a chat is retried after Telegram asked to slow down
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+    // per chat buckets of the chats that were idle for a while are dropped above this amount
+    private static final int MAX_IDLE_CHAT_BUCKETS = 10_000;
+
+    private final MessageSender sender;
+    private final ExecutorService executor;
+    private final TokenBucket globalBucket;
+    private final double perChatRate;
+    private final Map<Long, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param sender      sender that executes the messages
+     * @param threads     amount of threads sending messages concurrently, if platform threads are used
+     * @param globalRate  max amount of messages per second sent by the bot
+     * @param perChatRate max amount of messages per second sent to a single chat
+     * @param threadMode  kind of threads the messages are sent on
+     */
+    public MessageFanOut(MessageSender sender, int threads, double globalRate, double perChatRate,
+                         ThreadMode threadMode) {
+        this.sender = sender;
+        this.executor = threadMode.newExecutor("fan-out", threads);
+        this.globalBucket = new TokenBucket(Math.max(1, globalRate), globalRate);
+        this.perChatRate = perChatRate;
+    }
+
+    /**
+     * Returns a copy of the {@code template} addressed to the {@code chatId}, as messages are sent concurrently
+     * and can not share the same instance
+     */
+    static SendMessage copyFor(SendMessage template, long chatId) {
+        SendMessage.SendMessageBuilder builder = SendMessage.builder()
+                .chatId(chatId)
+                .text(template.getText())
+                .parseMode(template.getParseMode())
+                .replyMarkup(template.getReplyMarkup())
+                .disableNotification(template.getDisableNotification());
+        if (template.getEntities() != null) {
+            builder.entities(template.getEntities());
+        }
+        return builder.build();
+    }
+
+    private TokenBucket chatBucket(long chatId) {
+        return chatBuckets.computeIfAbsent(chatId, id -> new TokenBucket(Math.max(1, perChatRate), perChatRate));
+    }
+
+    /**
+     * Executes the method addressed to a single chat, waiting for the rate limits and retrying
+     * if Telegram asked to slow down
+     */
+    <T extends Serializable> T execute(long chatId, BotApiMethod<T> method)
+            throws TelegramApiException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                chatBucket(chatId).acquire();
+                globalBucket.acquire();
+                return sender.execute(method);
+            } catch (TelegramApiRequestException e) {
+                Integer retryAfter = e.getParameters() == null ? null : e.getParameters().getRetryAfter();
+                if (e.getErrorCode() != null && e.getErrorCode() == TOO_MANY_REQUESTS && retryAfter != null
+                        && attempt < MAX_RATE_LIMIT_RETRIES) {
+                    logger.warn("Rate limit hit while sending to chat {}, retrying after {}s", chatId, retryAfter);
+                    globalBucket.pause(retryAfter * 1000L);
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends the message to a single chat
+     */
+    private DeliveryReport.Delivery deliver(SendMessage template, long chatId) {
+        try {
+            Message message = execute(chatId, copyFor(template, chatId));
+            return DeliveryReport.Delivery.delivered(chatId, message.getMessageId());
+        } catch (TelegramApiException e) {
+            logger.error("Sending message to chat {} failed: {}", chatId, e.getMessage());
+            return DeliveryReport.Delivery.failed(chatId, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DeliveryReport.Delivery.failed(chatId, "Sending was interrupted");
+        }
+    }
+
+    /**
+     * Replaces text of a message sent by the bot, within the same rate limits as the sent messages
+     *
+     * @param chatId    chat of the message
+     * @param messageId id of the message in the chat
+     * @param text      new text of the message
+     * @return future that completes with true if the message was edited (or already had the text),
+     * future never completes exceptionally
+     */
+    public CompletableFuture<Boolean> edit(long chatId, int messageId, String text) {
+        EditMessageText edit = EditMessageText.builder()
+                .chatId(chatId)
+                .messageId(messageId)
+                .text(text)
+                .build();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                execute(chatId, edit);
+                return true;
+            } catch (TelegramApiRequestException e) {
+                if (e.getApiResponse() != null && e.getApiResponse().contains(NOT_MODIFIED)) {
+                    return true;
+                }
+                logger.error("Editing message {} in chat {} failed: {}", messageId, chatId, e.getMessage());
+                return false;
+            } catch (TelegramApiException e) {
+                logger.error("Editing message {} in chat {} failed: {}", messageId, chatId, e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }, executor);
+    }
+
+    /**
+     * Sends copies of the {@code message} to all {@code chatIds}
+     *
+     * @param chatIds chats the message will be sent to
+     * @param message message that will be sent, its chat id is ignored
+     * @return future with the outcome of delivery to every chat, future never completes exceptionally
+     */
+    public CompletableFuture<DeliveryReport> send(List<Long> chatIds, SendMessage message) {
+        if (chatBuckets.size() > MAX_IDLE_CHAT_BUCKETS) {
+            chatBuckets.values().removeIf(TokenBucket::isFull);
+        }
+        List<CompletableFuture<DeliveryReport.Delivery>> deliveries = new ArrayList<>(chatIds.size());
+        for (long chatId : chatIds) {
+            deliveries.add(CompletableFuture.supplyAsync(() -> deliver(message, chatId), executor));
+        }
+        return CompletableFuture.allOf(deliveries.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> new DeliveryReport(deliveries.stream().map(CompletableFuture::join).toList()));
+    }
+
+    /**
+     * Stops accepting new messages, already queued deliveries and edits are sent
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits until the deliveries and edits queued before {@link #shutdown()} are sent
+     *
+     * @return true if all of them were sent within the timeout
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,493 @@
+package bot.model;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.*;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import utils.DaemonThreads;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of outgoing messages, that are delivered at least once even if Telegram or the network fails,
+ * or the bot is restarted.
+ * <p>
+ * Messages are appended to a local journal by a single writer thread (group commit, like {@link JournalGraphPersistence})
+ * and handed over to the delivery threads once they are on disk, so the caller never waits for the disk or Telegram.
+ * Failed deliveries are retried with exponential backoff, or after {@code retry_after} if Telegram asked to slow down.
+ * Delivered and dropped messages are marked as done in the journal, the ones that are not done are sent again
+ * after a restart. Identical messages that are waiting for delivery at the same time are delivered once.
+ * <p>
+ * Journal record: {@code int payload length, payload, int CRC32 of the payload}, a torn record at the end is ignored.
+ * Journal is truncated when nothing is waiting for delivery.
+ * <p>
+ * Records are handed to the writer without blocking, as messages are queued from the update threads. If the writer
+ * falls {@value #QUEUE_CAPACITY} records behind, new messages are rejected instead of waiting for the disk.
+ */
+public class Outbox {
+    private static final Logger logger = LoggerFactory.getLogger(Outbox.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final String JOURNAL_FILE = "outbox.journal";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    // journal is truncated only if it grew above this size
+    private static final long COMPACT_SIZE = 1 << 20;
+
+    private static final byte SEND = 1;
+    private static final byte DONE = 2;
+
+    private static final byte NO_MARKUP = 0;
+    private static final byte INLINE_KEYBOARD = 1;
+    private static final byte REPLY_KEYBOARD = 2;
+    private static final byte REMOVE_KEYBOARD = 3;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int MAX_BATCH = 1024;
+    // marker for the writer thread, compared by identity
+    private static final Write CLOSE = new Write(new byte[0], null);
+
+    /**
+     * Message waiting for delivery
+     */
+    private static final class Entry {
+        private final long id;
+        private final long chatId;
+        // identical messages have the same key
+        private final String key;
+        private final SendMessage message;
+        // accessed only by the thread currently delivering the message
+        private int attempts;
+
+        private Entry(long id, long chatId, String key, SendMessage message) {
+            this.id = id;
+            this.chatId = chatId;
+            this.key = key;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Encoded journal record, {@code entry} is handed over to delivery once the record is on disk
+     */
+    private record Write(byte[] record, Entry entry) {
+    }
+
+    private final Path directory;
+    private final MessageFanOut fanOut;
+    private final int maxAttempts;
+    private final long maxBackoffMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService retryScheduler;
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+
+    private volatile boolean closed;
+    private Thread writer;
+    // state of the writer thread
+    private FileOutputStream journalFile;
+    private BufferedOutputStream journal;
+
+    /**
+     * @param directory        directory of the journal, created if missing
+     * @param fanOut           fan out whose rate limits are kept by the deliveries
+     * @param threads          amount of delivery threads, if platform threads are used
+     * @param maxAttempts      message is dropped after this many failed deliveries
+     * @param maxBackoffMillis max delay between two deliveries of a message
+     * @param threadMode       kind of threads the messages are delivered on
+     */
+    public Outbox(Path directory, MessageFanOut fanOut, int threads, int maxAttempts, long maxBackoffMillis,
+                  ThreadMode threadMode) {
+        this.directory = directory;
+        this.fanOut = fanOut;
+        this.maxAttempts = maxAttempts;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.executor = threadMode.newExecutor("outbox", threads);
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(
+                DaemonThreads.named("outbox-retry"));
+    }
+
+    /**
+     * Loads messages that were not delivered before the restart, starts the writer and sends the loaded messages again
+     *
+     * @throws IOException if the journal could not be read or written
+     */
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        Path journalPath = directory.resolve(JOURNAL_FILE);
+        List<Entry> undelivered = Files.exists(journalPath) ? replay(journalPath) : List.of();
+
+        // journal is rewritten with the undelivered messages only
+        Path temporary = directory.resolve(JOURNAL_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             BufferedOutputStream out = new BufferedOutputStream(file, BUFFER_SIZE)) {
+            for (Entry entry : undelivered) {
+                out.write(sendRecord(entry));
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        journalFile = new FileOutputStream(journalPath.toFile(), true);
+        journal = new BufferedOutputStream(journalFile, BUFFER_SIZE);
+
+        writer = new Thread(this::writeLoop, "outbox-journal");
+        writer.setDaemon(true);
+        writer.start();
+        if (!undelivered.isEmpty()) {
+            logger.info("Resending {} messages that were not delivered before the restart", undelivered.size());
+        }
+        for (Entry entry : undelivered) {
+            pending.put(entry.key, entry);
+            executor.execute(() -> deliver(entry));
+        }
+    }
+
+    /**
+     * Queues the message for delivery and returns immediately. Message is dropped if an identical one is
+     * already waiting for delivery.
+     *
+     * @param message message with chat id set, should not be changed after it was queued
+     */
+    public void send(SendMessage message) {
+        if (closed) {
+            logger.error("Outbox is closed, message to {} is not sent!", message.getChatId());
+            return;
+        }
+        Entry entry;
+        byte[] record;
+        try {
+            entry = new Entry(lastId.incrementAndGet(), Long.parseLong(message.getChatId()), key(message), message);
+            record = sendRecord(entry);
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Could not queue message to {}! {}", message.getChatId(), e.getMessage());
+            return;
+        }
+        if (pending.putIfAbsent(entry.key, entry) != null) {
+            logger.info("Identical message to {} is already waiting for delivery", entry.chatId);
+            return;
+        }
+        if (!append(new Write(record, entry))) {
+            // message is never delivered, so it must not suppress the identical ones sent later
+            pending.remove(entry.key, entry);
+            logger.error("Outbox could not queue message to {}, it is not sent!", entry.chatId);
+        }
+    }
+
+    /**
+     * @return amount of messages waiting for delivery
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /*
+     * Delivery
+     */
+
+    private void deliver(Entry entry) {
+        if (closed) {
+            // stays in the journal and is sent after the restart
+            return;
+        }
+        try {
+            fanOut.execute(entry.chatId, entry.message);
+            finish(entry);
+        } catch (TelegramApiRequestException e) {
+            Integer errorCode = e.getErrorCode();
+            Integer retryAfter = e.getParameters() == null ? null : e.getParameters().getRetryAfter();
+            if (errorCode != null && errorCode == TOO_MANY_REQUESTS && retryAfter != null) {
+                retry(entry, retryAfter * 1000L, e.getMessage());
+            } else if (errorCode != null && errorCode >= 400 && errorCode < 500) {
+                // chat does not exist, bot was blocked, message is invalid... sending again will not help
+                logger.error("Message {} to chat {} was rejected, dropping it! {}", entry.id, entry.chatId,
+                        e.getMessage());
+                finish(entry);
+            } else {
+                retry(entry, backoff(entry.attempts), e.getMessage());
+            }
+        } catch (TelegramApiException e) {
+            retry(entry, backoff(entry.attempts), e.getMessage());
+        } catch (InterruptedException e) {
+            // message stays pending, so it has to be delivered again
+            retry(entry, backoff(entry.attempts), "delivery was interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long backoff(int attempts) {
+        long delay = BASE_BACKOFF_MILLIS << Math.min(attempts, 20);
+        // jitter, so messages that failed together are not retried together
+        return Math.min(maxBackoffMillis, delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+    }
+
+    private void retry(Entry entry, long delayMillis, String error) {
+        entry.attempts++;
+        if (entry.attempts >= maxAttempts) {
+            logger.error("Message {} to chat {} failed {} times, dropping it! {}", entry.id, entry.chatId,
+                    entry.attempts, error);
+            finish(entry);
+            return;
+        }
+        logger.warn("Message {} to chat {} failed, retrying in {} ms! {}", entry.id, entry.chatId, delayMillis, error);
+        try {
+            retryScheduler.schedule(() -> executor.execute(() -> deliver(entry)), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // outbox is closing, message is sent after the restart
+            logger.info("Outbox is closed, message {} is retried after the restart", entry.id);
+        }
+    }
+
+    /**
+     * Removes the delivered or dropped message, so it is not sent again
+     */
+    private void finish(Entry entry) {
+        pending.remove(entry.key, entry);
+        ByteBuffer payload = ByteBuffer.allocate(9).put(DONE).putLong(entry.id);
+        if (!append(new Write(frame(payload.array()), null))) {
+            logger.warn("Message {} is done, but it may be sent again after the restart", entry.id);
+        }
+    }
+
+    /*
+     * Journal
+     */
+
+    /**
+     * Queues the record for the writer without blocking
+     *
+     * @return false if the outbox is closed or the writer is too far behind, record is not written then
+     */
+    private boolean append(Write write) {
+        if (closed) {
+            return false;
+        }
+        if (!queue.offer(write)) {
+            logger.error("Outbox journal is {} records behind!", QUEUE_CAPACITY);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean closing = false;
+                for (Write write : batch) {
+                    if (write == CLOSE) {
+                        closing = true;
+                    } else {
+                        journal.write(write.record());
+                    }
+                }
+                if (closing) {
+                    // records that were queued while the outbox was being closed
+                    List<Write> late = new ArrayList<>();
+                    queue.drainTo(late);
+                    for (Write write : late) {
+                        journal.write(write.record());
+                    }
+                }
+                journal.flush();
+                journalFile.getChannel().force(false);
+                if (closing) {
+                    journal.close();
+                    return;
+                }
+                // messages are delivered only once they survive a restart
+                for (Write write : batch) {
+                    if (write.entry() != null && !closed) {
+                        executor.execute(() -> deliver(write.entry()));
+                    }
+                }
+                batch.clear();
+                // entries are put into pending before their record is queued, so nothing queued is lost here
+                if (pending.isEmpty() && queue.isEmpty() && journalFile.getChannel().size() > COMPACT_SIZE) {
+                    journalFile.getChannel().truncate(0);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Writing outbox journal failed, messages are no longer sent! {}", e.getMessage());
+            closed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads journal
+     *
+     * @return messages that were not done in the order they were queued, identical messages only once
+     */
+    private List<Entry> replay(Path journalPath) throws IOException {
+        Map<Long, Entry> undelivered = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath), BUFFER_SIZE))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        logger.warn("Corrupted record in {}, ignoring the rest", journalPath);
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        logger.warn("Corrupted record in {}, ignoring the rest", journalPath);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // end of the journal, or a torn last record
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long id = record.readLong();
+                lastId.accumulateAndGet(id, Math::max);
+                switch (type) {
+                    case SEND -> undelivered.put(id, readEntry(id, record));
+                    case DONE -> undelivered.remove(id);
+                    default -> throw new IOException("Unknown outbox record type " + type);
+                }
+            }
+        }
+        Map<String, Entry> unique = new LinkedHashMap<>();
+        for (Entry entry : undelivered.values()) {
+            unique.putIfAbsent(entry.key, entry);
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(payload.length + 8)
+                .putInt(payload.length)
+                .put(payload)
+                .putInt((int) crc.getValue())
+                .array();
+    }
+
+    private static String key(SendMessage message) throws JsonProcessingException {
+        return message.getChatId() + "\n" + message.getText() + "\n" + objectMapper.writeValueAsString(message.getReplyMarkup());
+    }
+
+    private static byte[] sendRecord(Entry entry) throws IOException {
+        SendMessage message = entry.message;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(SEND);
+            out.writeLong(entry.id);
+            out.writeLong(entry.chatId);
+            // Telegram messages are at most 4096 characters, which always fits into writeUTF
+            out.writeUTF(message.getText());
+            writeNullable(out, message.getParseMode());
+            writeNullable(out, message.getEntities() == null ? null : objectMapper.writeValueAsString(message.getEntities()));
+            ReplyKeyboard markup = message.getReplyMarkup();
+            byte markupType = markup instanceof InlineKeyboardMarkup ? INLINE_KEYBOARD
+                    : markup instanceof ReplyKeyboardMarkup ? REPLY_KEYBOARD
+                    : markup instanceof ReplyKeyboardRemove ? REMOVE_KEYBOARD
+                    : NO_MARKUP;
+            out.writeByte(markupType);
+            if (markupType != NO_MARKUP) {
+                writeBytes(out, objectMapper.writeValueAsBytes(markup));
+            }
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static Entry readEntry(long id, DataInputStream in) throws IOException {
+        long chatId = in.readLong();
+        SendMessage.SendMessageBuilder builder = SendMessage.builder()
+                .chatId(chatId)
+                .text(in.readUTF())
+                .parseMode(readNullable(in));
+        String entities = readNullable(in);
+        if (entities != null) {
+            builder.entities(objectMapper.readValue(entities, new TypeReference<List<MessageEntity>>() {}));
+        }
+        byte markupType = in.readByte();
+        if (markupType != NO_MARKUP) {
+            byte[] markup = readBytes(in);
+            builder.replyMarkup(switch (markupType) {
+                case INLINE_KEYBOARD -> objectMapper.readValue(markup, InlineKeyboardMarkup.class);
+                case REPLY_KEYBOARD -> objectMapper.readValue(markup, ReplyKeyboardMarkup.class);
+                case REMOVE_KEYBOARD -> objectMapper.readValue(markup, ReplyKeyboardRemove.class);
+                default -> throw new IOException("Unknown reply markup type " + markupType);
+            });
+        }
+        SendMessage message = builder.build();
+        return new Entry(id, chatId, key(message), message);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new String(readBytes(in), StandardCharsets.UTF_8) : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid length of outbox record field " + length);
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Writes all queued records and stops the outbox. Messages that were not delivered yet are sent after the restart.
+     */
+    public void close() throws IOException {
+        if (closed || writer == null) {
+            return;
+        }
+        closed = true;
+        retryScheduler.shutdownNow();
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the outbox");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
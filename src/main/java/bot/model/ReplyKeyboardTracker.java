@@ -0,0 +1,51 @@
+package bot.model;
+
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardRemove;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the reply keyboard (not inline) that is currently shown in every chat.
+ * <p>
+ * Telegram removes a reply keyboard only with a message that carries {@link ReplyKeyboardRemove}, and a message
+ * can carry only one markup. Instead of sending an extra message just to remove the keyboard, removal is attached
+ * to the next reply without a markup of its own. State is kept in memory only, so after a restart keyboards are
+ * removed by the messages that always remove them (errors, aborts, location sharing results).
+ */
+public class ReplyKeyboardTracker {
+    private final Map<Long, ReplyKeyboardMarkup> shown = new ConcurrentHashMap<>();
+
+    /**
+     * Records that {@code keyboard} was sent to the chat and is now shown
+     */
+    public void shown(long chatId, ReplyKeyboardMarkup keyboard) {
+        shown.put(chatId, keyboard);
+    }
+
+    /**
+     * Records that the keyboard of the chat was removed by a message with {@link ReplyKeyboardRemove}
+     */
+    public void removed(long chatId) {
+        shown.remove(chatId);
+    }
+
+    /**
+     * @return keyboard that is currently shown in the chat, or {@code null} if there is none
+     */
+    public ReplyKeyboardMarkup getShown(long chatId) {
+        return shown.get(chatId);
+    }
+
+    /**
+     * Returns the markup for a reply without a markup of its own and records the keyboard as removed,
+     * as the reply is going to remove it.
+     *
+     * @param chatId chat the reply will be sent to
+     * @return {@link ReplyKeyboardRemove} if a keyboard is shown in the chat, {@code null} otherwise
+     */
+    public ReplyKeyboardRemove takeRemoval(long chatId) {
+        return shown.remove(chatId) == null ? null : KeyboardFactory.removeKeyboard();
+    }
+}
@@ -12,12 +12,14 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.MessageEntity;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardRemove;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import utils.Constants;
 import utils.Constants.*;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class responsible for all communication from bot to user
@@ -26,14 +28,46 @@ public class ResponseHandler {
     private static final Logger logger = LoggerFactory.getLogger(ResponseHandler.class);
     private final MessageSender sender;
     private final SilentSender silent;
+    private final MessageFanOut fanOut;
+    private final Outbox outbox;
+    private final ReplyKeyboardTracker keyboards = new ReplyKeyboardTracker();
     private DBContext db;
-    private static final int MAX_BUTTONS_PER_LIST = 5;
 
     public ResponseHandler(MessageSender sender,
-                           SilentSender silent, DBContext db) {
+                           SilentSender silent, DBContext db, MessageFanOut fanOut, Outbox outbox) {
         this.sender = sender;
         this.silent = silent;
         this.db = db;
+        this.fanOut = fanOut;
+        this.outbox = outbox;
+    }
+
+    /**
+     * Queues a text message in the {@link Outbox}, so it is delivered even if Telegram is not reachable right now
+     *
+     * @param chatId chat the message will be sent to
+     * @param text text of the message
+     * */
+    private void sendDurably(long chatId, String text) {
+        outbox.send(SendMessage.builder()
+                .chatId(chatId)
+                .text(text)
+                .build());
+    }
+
+    /**
+     * Queues a reply in the {@link Outbox} like {@link #sendDurably(long, String)}, removing the reply keyboard
+     * of the chat with it if one is shown
+     *
+     * @param chatId chat the reply will be sent to
+     * @param text text of the reply
+     * */
+    private void replyDurably(long chatId, String text) {
+        outbox.send(SendMessage.builder()
+                .chatId(chatId)
+                .text(text)
+                .replyMarkup(keyboards.takeRemoval(chatId))
+                .build());
     }
 
     /**
@@ -75,6 +109,7 @@ public class ResponseHandler {
                     .text("Action aborted!")
                     .replyMarkup(KeyboardFactory.removeKeyboard())
                     .build());
+            keyboards.removed(incomingAbortMessage.getChatId());
         } catch (TelegramApiException e) {
             logger.error("Action abortion notification sending failed!");
         }
@@ -94,6 +129,7 @@ public class ResponseHandler {
                 .build();
         try {
             sender.execute(message);
+            keyboards.removed(chatId);
         } catch (TelegramApiException e) {
             logger.error("Error sending failed by {}!", chatId);
         }
@@ -115,21 +151,20 @@ public class ResponseHandler {
     }
 
     /**
-     * Sends a dummy message to the user with empty keyboard and instantly deletes it
-     * */
-    public void removeReplyKeyboardMarkup(long chatId) {
-        SendMessage m = SendMessage.builder()
-                .chatId(chatId)
-                .text(".")
-                .replyMarkup(KeyboardFactory.removeKeyboard())
-                .build();
-        Message message;
-        try {
-            message = sender.execute(m);
-            DeleteMessage deleteMessage = DeleteMessage.builder().chatId(chatId).messageId(message.getMessageId()).build();
-            sender.execute(deleteMessage);
-        } catch (TelegramApiException e) {
-            logger.error("Removing keyboard failed! {}", e.getMessage());
+     * Tells the user that his unfinished flow has expired, if the reply keyboard of the flow is still shown.
+     * Keyboard is removed with the notification, without a keyboard the flow ends silently.
+     *
+     * @param chatId chat of the flow
+     * @param text   notification about the expiry
+     */
+    public void sendFlowExpired(long chatId, String text) {
+        ReplyKeyboardRemove removal = keyboards.takeRemoval(chatId);
+        if (removal != null) {
+            outbox.send(SendMessage.builder()
+                    .chatId(chatId)
+                    .text(text)
+                    .replyMarkup(removal)
+                    .build());
         }
     }
 
@@ -151,6 +186,7 @@ public class ResponseHandler {
             // not removing previous reply markup, as we are sending a new one
             logger.info("Sending add friend request to chat {}!", chatId);
             sender.execute(message);
+            keyboards.shown(chatId, keyboardMarkup);
         } catch (TelegramApiException e) {
             logger.error("Sending Add friend Request to chat {} failed! {}", chatId, e.getMessage());
             sendErrorMessage(chatId, "Add friend request failed! Please try again!");
@@ -165,8 +201,7 @@ public class ResponseHandler {
      * */
     public Integer askForCommentForFriendRequest(long chatId) {
         InlineKeyboardMarkup keyboardMarkup =
-                KeyboardFactory.friendRequestCommentInlineKeyboard(FriendRequestConstants.CONFIRM_CALLBACK_QUERY,
-                FriendRequestConstants.ABORT_CALLBACK_QUERY);
+                KeyboardFactory.friendRequestCommentInlineKeyboard();
         SendMessage message = SendMessage.builder()
                 .chatId(chatId)
                 .text("If you would like to add any comment, that will be attached to the friend request, you can do it now :)" +
@@ -176,8 +211,7 @@ public class ResponseHandler {
 
         // message with a choice to provide the comment for the friend request
         try {
-            // remove previous reply keyboard, as not sending a new one (only inline)
-            removeReplyKeyboardMarkup(chatId);
+            // reply keyboard stays until the end of the flow, message can carry only the inline one
             return sender.execute(message).getMessageId();
         } catch (TelegramApiException e) {
             logger.error("Asking for comments failed for {}", chatId);
@@ -196,49 +230,46 @@ public class ResponseHandler {
         return String.format("You got new friend request from @%s\n\n%s", userName, comment);
     }
 
-    public void sendFriendRequestPreview(GeoUser requestSender, GeoUser receiver, String comment) {
+    /**
+     * Sends the preview of the friend request with options to send or abort it
+     *
+     * @return id of the preview message, or {@code null} if it could not be sent
+     * */
+    public Integer sendFriendRequestPreview(GeoUser requestSender, GeoUser receiver, String comment) {
         String text = String.format("""
                         Please confirm the sending of friend request!
                         @%s will receive a following message from you:
 
                         %s""", receiver.getUser().getUserName(), comment);
         InlineKeyboardMarkup keyboardMarkup =
-                KeyboardFactory.friendRequestConfirmInlineKeyboard(FriendRequestConstants.CONFIRM_CALLBACK_QUERY,
-                        FriendRequestConstants.ABORT_CALLBACK_QUERY);
+                KeyboardFactory.friendRequestConfirmInlineKeyboard();
         SendMessage message = SendMessage.builder()
                 .chatId(requestSender.getChatId())
                 .replyMarkup(keyboardMarkup)
                 .text(text)
                 .build();
         try {
-            // remove previous reply keyboard
-            removeReplyKeyboardMarkup(requestSender.getChatId());
-            sender.execute(message);
+            return sender.execute(message).getMessageId();
         } catch (TelegramApiException e) {
-            e.printStackTrace();
+            logger.error("Sending friend request preview failed for {}", requestSender.getChatId());
+            return null;
         }
     }
 
     public void abortedSendingFriendRequest(GeoUser requestSender) {
-        SendMessage message = SendMessage.builder()
-                .chatId(requestSender.getChatId())
-                .text("Friend request is aborted!")
-                .build();
-        try {
-            sender.execute(message);
-        } catch (TelegramApiException e) {
-            e.printStackTrace();
-        }
+        replyDurably(requestSender.getChatId(), "Friend request is aborted!");
     }
 
     /**
-     * Sends message to {@code requestSender} and {@code receiver} informing about the friend request
+     * Sends message to {@code receiver} informing about the friend request
      *
      * @param requestSender sender of the request
      * @param receiver      receiver of the request
      * @param requestText   text that will be visible to the receiver
+     * @return friend request that was sent to the receiver. If Telegram could not be reached, message is delivered
+     * later by the {@link Outbox} and the request has no message id.
      */
-    public void sendFriendRequest(GeoUser requestSender, GeoUser receiver, String requestText) {
+    public GeoUser.FriendRequest sendFriendRequest(GeoUser requestSender, GeoUser receiver, String requestText) {
         String acceptFriendRequestCallback =
                 CallbackQueryDataFactory.FriendRequestAnswer.acceptRequest(requestSender.getUserId(), receiver.getUserId());
         String declineFriendRequestCallback =
@@ -263,18 +294,26 @@ public class ResponseHandler {
                 .build();
         try {
             Message m = sender.execute(friendRequestMessage);
-            requestSender.sendFriendRequest(receiver,
-                    new GeoUser.FriendRequest(requestSender, receiver, requestText, m.getMessageId()));
-            SendMessage messageToSender = SendMessage.builder()
-                    .text("You have sent request to: @" + receiver.getUser().getUserName())
-                    .chatId(requestSender.getChatId())
-                    .build();
-            sender.execute(messageToSender);
+            return new GeoUser.FriendRequest(requestSender.getUserId(), receiver.getUserId(), requestText,
+                    m.getMessageId());
         } catch (TelegramApiException e) {
-            sendErrorMessage(requestSender.getChatId(), e.getMessage());
+            logger.error("Sending friend request to {} failed, delivering it later! {}", receiver.getChatId(),
+                    e.getMessage());
+            outbox.send(friendRequestMessage);
+            return new GeoUser.FriendRequest(requestSender.getUserId(), receiver.getUserId(), requestText, null);
         }
     }
 
+    /**
+     * Sends message to {@code requestSender} informing that the friend request was sent
+     *
+     * @param requestSender sender of the request
+     * @param receiver      receiver of the request
+     */
+    public void sendFriendRequestSent(GeoUser requestSender, GeoUser receiver) {
+        replyDurably(requestSender.getChatId(), "You have sent request to: @" + receiver.getUser().getUserName());
+    }
+
     /**
      * Sends messages informing that {@code receiver} accepted friend request from {@code sender}
      *
@@ -282,10 +321,10 @@ public class ResponseHandler {
      * @param receiver receiver of the initial friend request
      */
     public void sendFriendRequestAccepted(GeoUser sender, GeoUser receiver) {
-        silent.send(String.format("@%s has accepted your friend request!",
-                receiver.getUser().getUserName()), sender.getChatId());
-        silent.send(String.format("You have accepted @%s friend request!",
-                sender.getUser().getUserName()), receiver.getChatId());
+        sendDurably(sender.getChatId(), String.format("@%s has accepted your friend request!",
+                receiver.getUser().getUserName()));
+        sendDurably(receiver.getChatId(), String.format("You have accepted @%s friend request!",
+                sender.getUser().getUserName()));
     }
 
     /**
@@ -295,10 +334,10 @@ public class ResponseHandler {
      * @param receiver receiver of the initial friend request
      */
     public void sendFriendRequestDeclined(GeoUser sender, GeoUser receiver) {
-        silent.send(String.format("@%s has declined your friend request!",
-                receiver.getUser().getUserName()), sender.getChatId());
-        silent.send(String.format("You have declined @%s friend request!",
-                sender.getUser().getUserName()), receiver.getChatId());
+        sendDurably(sender.getChatId(), String.format("@%s has declined your friend request!",
+                receiver.getUser().getUserName()));
+        sendDurably(receiver.getChatId(), String.format("You have declined @%s friend request!",
+                sender.getUser().getUserName()));
     }
 
     /**
@@ -318,6 +357,7 @@ public class ResponseHandler {
         try {
             logger.info("Sending location request to chat {}!", chatId);
             sender.execute(message);
+            keyboards.shown(chatId, keyboardMarkup);
         } catch (TelegramApiException e) {
             logger.error("Sending location request to chat {} failed! {}", chatId, e.getMessage());
             sendErrorMessage(chatId, "Send location request failed! Please try again!");
@@ -328,22 +368,34 @@ public class ResponseHandler {
      * Sends result notification to the location sharer {@code user}
      * */
     public void sendLocationSharingResult(GeoUser user, boolean success) {
-        SendMessage message = SendMessage.builder()
+        sendLocationSharingResult(user, success
+                ? "Successfully shared location with your geo pals!"
+                : "Location sharing failed! Please try again later!");
+    }
+
+    /**
+     * Sends result notification to the location sharer {@code user} based on the delivery outcome
+     *
+     * @param user sharer of the location
+     * @param report outcome of the delivery of location to the friends
+     * */
+    public void sendLocationSharingResult(GeoUser user, DeliveryReport report) {
+        if (report.allDelivered() || report.noneDelivered()) {
+            sendLocationSharingResult(user, report.allDelivered());
+            return;
+        }
+        sendLocationSharingResult(user, String.format("Shared location with %d of %d geo pals! Others could not be " +
+                        "reached yet, they will get it as soon as possible.",
+                report.deliveredCount(), report.deliveries().size()));
+    }
+
+    private void sendLocationSharingResult(GeoUser user, String text) {
+        outbox.send(SendMessage.builder()
                 .chatId(user.getChatId())
-                //text will be changed
-                .text(" ")
+                .text(text)
                 .replyMarkup(KeyboardFactory.removeKeyboard())
-                .build();
-        if (success) {
-            message.setText("Successfully shared location with your geo pals!");
-        } else {
-            message.setText("Location sharing failed! Please try again later!");
-        }
-        try {
-            sender.execute(message);
-        } catch (TelegramApiException e) {
-            logger.error("Sending location sharing result failed!");
-        }
+                .build());
+        keyboards.removed(user.getChatId());
     }
 
     /**
@@ -352,55 +404,73 @@ public class ResponseHandler {
      * @param user sender of the location (usually will be in the text message sent to friends
      * @param chatIds list of ids of chats the message will be sent to
      * @param locationText text that contains the location of the {@code user}
-     * @throws TelegramApiException if message execution failed
+     * @return future with the outcome of delivery to every chat
      * @throws IllegalArgumentException if message did not contain text
      * */
-    public void sendLocationToFriends(GeoUser user, List<Long> chatIds, String locationText) throws TelegramApiException {
+    public CompletableFuture<DeliveryReport> sendLocationToFriends(GeoUser user, List<Long> chatIds, String locationText) {
         SendMessage locationMessage = SendMessage
                 .builder()
-                // chat id must be changed in the sendMessageToChats
+                // chat id is set for every recipient by the fan out
                 .chatId(0L)
                 .text(locationText)
                 .build();
-        sendMessageToChats(user, chatIds, locationMessage);
+        return sendMessageToChats(user, chatIds, locationMessage);
+    }
+
+    /**
+     * Replaces text of a location message sent before by {@code sendLocationToFriends()}
+     *
+     * @param chatId       chat of the message
+     * @param messageId    id of the message in the chat
+     * @param locationText new text with the location
+     * @return future that completes with true if the message was edited
+     */
+    public CompletableFuture<Boolean> editLocationMessage(long chatId, int messageId, String locationText) {
+        return fanOut.edit(chatId, messageId, locationText);
     }
 
     /**
-     * Sends {@code text} to all the users friends
+     * Sends {@code message} to all {@code chatIds} concurrently, keeping within the Telegram rate limits.
+     * Failed delivery to one of the chats does not stop delivery to the others, failed deliveries are retried
+     * by the {@link Outbox}.
      *
-     * @param user user to get friends from
+     * @param user user on whose behalf the message is sent
      * @param chatIds list of ids of chats the message will be sent to
      * @param message message that will be sent to all {@code chatIds}. Should already contain text.
-     * @throws TelegramApiException if message execution failed
+     * @return future with the outcome of delivery to every chat
      * @throws IllegalArgumentException if message did not contain text
      */
-    public void sendMessageToChats(GeoUser user, List<Long> chatIds, SendMessage message)
-            throws TelegramApiException, IllegalArgumentException {
+    public CompletableFuture<DeliveryReport> sendMessageToChats(GeoUser user, List<Long> chatIds, SendMessage message)
+            throws IllegalArgumentException {
         if (message.getText().isEmpty()) {
             throw new IllegalArgumentException("Message text cannot be empty!");
         }
-        for (long chatId : chatIds) {
-            try {
-                message.setChatId(chatId);
-                sender.execute(message);
-            } catch (TelegramApiException e) {
-                logger.error("Text sending failed by user: {}", user.getChatId());
-                throw new TelegramApiException("Text sending failed by: " + user.getChatId());
+        return fanOut.send(chatIds, message).thenApply(report -> {
+            if (!report.allDelivered()) {
+                logger.error("Text sending by user {} failed for {} of {} chats, retrying them", user.getChatId(),
+                        report.failed().size(), chatIds.size());
+                for (DeliveryReport.Delivery delivery : report.failed()) {
+                    outbox.send(MessageFanOut.copyFor(message, delivery.chatId()));
+                }
             }
-        }
+            return report;
+        });
     }
 
     /**
      * Sends a text representation of the friendList to user
      *
      * @param chatId user's chat that will receive the message
-     * @param friendList text representation of his friend
+     * @param friendList text representation of his friends, split into messages that fit into a Telegram message
+     * (see {@link FriendListView})
      * */
-    public void sendFriendList(Long chatId, String friendList) {
+    public void sendFriendList(Long chatId, List<String> friendList) {
         if (friendList.isEmpty()) {
             sendHasNoFriends(chatId);
-        } else {
-            silent.send("Here are your friends:\n" + friendList, chatId);
+            return;
+        }
+        for (String message : friendList) {
+            silent.send(message, chatId);
         }
     }
 
@@ -415,33 +485,26 @@ public class ResponseHandler {
      * in that particular message.
      *
      * @param chatId id of user's chat
-     * @param buttons list of buttons in format [buttonText, buttonCallback]
-     * @param startIndex index from which buttons will be sent inclusive
+     * @param page page of the friend list that is shown
+     * @param buttons buttons of the friends on the page in format [buttonText, buttonCallback]
      * @param isFirstMessage if true - sends a message to the user with an inline keyboard with friend
      * that can be removed. Otherwise method is called for an already existing message with {@code messageId} and the keyboard is edited
      * in that particular message
      * */
-    public void sendFriendListToRemove(long chatId, Integer messageId, List<Map.Entry<String, String>> buttons,
-                                       int startIndex, boolean isFirstMessage) {
-        if (buttons.size() <= startIndex) {
-            logger.error("Button list is smaller than start index");
-            return;
-        } else if (startIndex < 0) {
-            logger.error("Start index cannot be negative!");
+    public void sendFriendListToRemove(long chatId, Integer messageId, FriendListPage page,
+                                       List<Map.Entry<String, String>> buttons, boolean isFirstMessage) {
+        if (page.isEmpty() && isFirstMessage) {
+            sendHasNoFriends(chatId);
             return;
         }
-        int lastIndex = startIndex + MAX_BUTTONS_PER_LIST - 1;
-        // list that will be sent to user
-        List<Map.Entry<String, String>> resultList = buttons.subList(startIndex, Math.min(buttons.size(), lastIndex + 1));
-        // if last button index is less that the generated one -> need no next button (this is the last page)
-        String nextBtnCallback = buttons.size() - 1 <= lastIndex
-                ? null
-                : CallbackQueryDataFactory.RemoveFriend.getNewIndexCallback(Math.min(buttons.size() - 1, lastIndex + 1));
-        String prevBtnCallback = startIndex + resultList.size() <= MAX_BUTTONS_PER_LIST
-                ? null
-                : CallbackQueryDataFactory.RemoveFriend.getNewIndexCallback(Math.max(0, startIndex - MAX_BUTTONS_PER_LIST));
+        String nextBtnCallback = page.hasNext()
+                ? CallbackQueryDataFactory.RemoveFriend.getNextPageCallback(page.lastId())
+                : null;
+        String prevBtnCallback = page.hasPrevious()
+                ? CallbackQueryDataFactory.RemoveFriend.getPreviousPageCallback(page.firstId())
+                : null;
         InlineKeyboardMarkup keyboardMarkup =
-                KeyboardFactory.removeFriendInlineKeyboard(resultList, nextBtnCallback, prevBtnCallback);
+                KeyboardFactory.removeFriendInlineKeyboard(buttons, nextBtnCallback, prevBtnCallback);
         if (isFirstMessage) {
             // need to send a message and attach the list to it
             SendMessage message = SendMessage.builder()
@@ -478,7 +541,7 @@ public class ResponseHandler {
      @param userName the username of the friend to be removed.
      @param friendId the ID of the friend to be removed.
      */
-    public void askToConfirmFriendRemove(long chatId, String userName , String friendId) {
+    public void askToConfirmFriendRemove(long chatId, String userName, long friendId) {
         InlineKeyboardMarkup keyboardMarkup =
                 KeyboardFactory.removeFriendConfirmInlineKeyboard(CallbackQueryDataFactory.RemoveFriend.getConfirmCallback(friendId));
         SendMessage message = SendMessage.builder()
@@ -501,7 +564,7 @@ public class ResponseHandler {
      * @param userName  the username of the friend who was deleted.
      */
     public void sendSuccessfullyDeleted(long chatId, String userName) {
-        silent.send("Successfully removed @" + userName + " from friends!", chatId);
+        sendDurably(chatId, "Successfully removed @" + userName + " from friends!");
     }
 
     /**
@@ -511,8 +574,8 @@ public class ResponseHandler {
      * @param userName  the username of the friend who removed the user.
      */
     public void sendDeletedFromFriends(long chatId, String userName) {
-        silent.send("@" + userName + " has removed you from friends. You are no longer sharing location with them! " +
-                "If you want to add them back to friends - send new /add_friend command!", chatId);
+        sendDurably(chatId, "@" + userName + " has removed you from friends. You are no longer sharing location with them! " +
+                "If you want to add them back to friends - send new /add_friend command!");
     }
 
     /**
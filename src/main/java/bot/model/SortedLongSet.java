@@ -0,0 +1,122 @@
+package bot.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+/**
+ * Immutable set of primitive longs backed by a sorted array. Takes 8 bytes per element,
+ * lookups are binary searches and the order of iteration is always the ascending order of values.
+ * Adding and removing returns a new set, so a set can be shared between threads without locking.
+ */
+public final class SortedLongSet implements Serializable {
+    public static final SortedLongSet EMPTY = new SortedLongSet(new long[0]);
+
+    private final long[] values;
+
+    private SortedLongSet(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @param values values of the set in any order, duplicates are dropped
+     * @return set of the given values
+     */
+    public static SortedLongSet of(long... values) {
+        if (values == null || values.length == 0) {
+            return EMPTY;
+        }
+        return new SortedLongSet(LongStream.of(values).sorted().distinct().toArray());
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public boolean contains(long value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * @param index index of the value in ascending order
+     * @return value at the index
+     * @throws IndexOutOfBoundsException if index is out of bounds
+     */
+    public long get(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param value value to look for
+     * @return index of the value, or {@code -(insertion point) - 1} if there is no such value
+     * (same as {@link Arrays#binarySearch(long[], long)})
+     */
+    public int indexOf(long value) {
+        return Arrays.binarySearch(values, value);
+    }
+
+    public LongStream stream() {
+        return LongStream.of(values);
+    }
+
+    /**
+     * @return copy of the values in ascending order
+     */
+    public long[] toArray() {
+        return values.clone();
+    }
+
+    /**
+     * @return set with the {@code value} added, or this set if it already contains the value
+     */
+    public SortedLongSet with(long value) {
+        int index = Arrays.binarySearch(values, value);
+        if (index >= 0) {
+            return this;
+        }
+        int insertion = -index - 1;
+        long[] result = new long[values.length + 1];
+        System.arraycopy(values, 0, result, 0, insertion);
+        result[insertion] = value;
+        System.arraycopy(values, insertion, result, insertion + 1, values.length - insertion);
+        return new SortedLongSet(result);
+    }
+
+    /**
+     * @return set without the {@code value}, or this set if it does not contain the value
+     */
+    public SortedLongSet without(long value) {
+        int index = Arrays.binarySearch(values, value);
+        if (index < 0) {
+            return this;
+        }
+        if (values.length == 1) {
+            return EMPTY;
+        }
+        long[] result = new long[values.length - 1];
+        System.arraycopy(values, 0, result, 0, index);
+        System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+        return new SortedLongSet(result);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(values, ((SortedLongSet) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
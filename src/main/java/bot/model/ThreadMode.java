@@ -0,0 +1,81 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.DaemonThreads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Kind of threads the blocking work of the bot (handling of updates, calls to Telegram and geocoding) runs on.
+ * Virtual threads need Java 21, they are looked up at runtime, so the bot still runs on older JVMs
+ * and falls back to platform threads there.
+ */
+public enum ThreadMode {
+    /**
+     * Fixed pools of platform threads
+     */
+    PLATFORM,
+    /**
+     * New virtual thread for every task, concurrency is limited only by the rate limits and bulkheads
+     */
+    VIRTUAL;
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadMode.class);
+
+    /**
+     * @param name "virtual" or "platform", case-insensitive
+     * @return selected mode, {@code PLATFORM} if virtual threads were selected but are not supported by the JVM
+     */
+    public static ThreadMode of(String name) {
+        if (!name.trim().equalsIgnoreCase("virtual")) {
+            return PLATFORM;
+        }
+        if (!virtualThreadsSupported()) {
+            logger.warn("Virtual threads are not supported by Java {}, using platform threads",
+                    System.getProperty("java.version"));
+            return PLATFORM;
+        }
+        return VIRTUAL;
+    }
+
+    /**
+     * Creates a virtual thread executor to find out if virtual threads work: on Java 19 and 20 the method exists,
+     * but fails without {@code --enable-preview}
+     */
+    private static boolean virtualThreadsSupported() {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * @return executor that starts a new virtual thread for each task, or {@code null} if JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param name            prefix of the names of the platform threads
+     * @param platformThreads amount of threads if platform threads are used
+     * @return executor for the blocking tasks in this mode
+     */
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                return executor;
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads, DaemonThreads.named(name));
+    }
+}
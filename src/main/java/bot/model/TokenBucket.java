@@ -0,0 +1,99 @@
+package bot.model;
+
+/**
+ * Token bucket rate limiter. Bucket holds up to {@code capacity} tokens and is refilled
+ * with {@code ratePerSecond} tokens every second, every sent message takes one token.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastRefillNanos;
+    // bucket gives no tokens until this moment (e.g. Telegram asked to retry after some time)
+    private long pausedUntilNanos;
+
+    /**
+     * @param capacity      max amount of tokens, i.e. max burst size
+     * @param ratePerSecond amount of tokens added every second
+     */
+    public TokenBucket(double capacity, double ratePerSecond) {
+        if (capacity < 1 || ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Token bucket capacity should be at least 1 and rate should be positive!");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = ratePerSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+        this.pausedUntilNanos = lastRefillNanos;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Takes a token if there is one available
+     *
+     * @return nanoseconds to wait until the next token will be available, {@code 0} if token was taken
+     */
+    private synchronized long tryTake() {
+        long now = System.nanoTime();
+        if (pausedUntilNanos - now > 0) {
+            return pausedUntilNanos - now;
+        }
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+
+    /**
+     * @return true if token was taken, false if there are no tokens available right now
+     */
+    public boolean tryAcquire() {
+        return tryTake() == 0;
+    }
+
+    /**
+     * Blocks until a token is available and takes it
+     *
+     * @throws InterruptedException if thread was interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryTake()) > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    /**
+     * Stops giving tokens for the given amount of time and drains the bucket,
+     * so that no burst is sent right after the pause
+     *
+     * @param millis duration of the pause in milliseconds
+     */
+    public synchronized void pause(long millis) {
+        long until = System.nanoTime() + millis * 1_000_000;
+        if (until - pausedUntilNanos > 0) {
+            pausedUntilNanos = until;
+        }
+        tokens = 0;
+        lastRefillNanos = pausedUntilNanos;
+    }
+
+    /**
+     * @return true if the bucket is full, meaning it was not used for a while
+     */
+    public synchronized boolean isFull() {
+        long now = System.nanoTime();
+        if (pausedUntilNanos - now > 0) {
+            return false;
+        }
+        refill(now);
+        return tokens >= capacity;
+    }
+}
@@ -0,0 +1,57 @@
+package bot.model;
+
+import org.telegram.abilitybots.api.util.AbilityUtils;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.function.Consumer;
+
+/**
+ * Dispatches updates to their handler, so that updates of a user are never handled concurrently or out of order
+ * (which reply flows rely on), while updates of different users are handled in parallel.
+ */
+public interface UpdateDispatcher {
+    /**
+     * Creates dispatcher for the thread mode: serial lanes of platform threads ({@link LaneUpdateDispatcher})
+     * or a mailbox per user drained by virtual threads ({@link MailboxUpdateDispatcher})
+     *
+     * @param mode                 kind of threads the updates are handled on
+     * @param lanes                amount of lanes of the platform threads
+     * @param laneCapacity         max amount of updates waiting in a lane
+     * @param updateTimeoutMillis  time a single update has to be handled in on virtual threads
+     * @param handler              handler of a single update
+     */
+    static UpdateDispatcher create(ThreadMode mode, int lanes, int laneCapacity, long updateTimeoutMillis,
+                                   Consumer<Update> handler) {
+        return mode == ThreadMode.VIRTUAL
+                ? new MailboxUpdateDispatcher(updateTimeoutMillis, handler)
+                : new LaneUpdateDispatcher(lanes, laneCapacity, handler);
+    }
+
+    /**
+     * @return id of the user the update came from, or id of the update if it has no user
+     */
+    static long keyOf(Update update) {
+        try {
+            return AbilityUtils.getUser(update).getId();
+        } catch (IllegalStateException e) {
+            return update.getUpdateId();
+        }
+    }
+
+    /**
+     * Queues the update for handling and returns
+     */
+    void dispatch(Update update);
+
+    /**
+     * Stops accepting updates, already dispatched ones are handled
+     */
+    void shutdown();
+
+    /**
+     * Waits until the updates dispatched before {@link #shutdown()} are handled
+     *
+     * @return true if all of them were handled within the timeout
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException;
+}
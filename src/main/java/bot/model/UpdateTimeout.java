@@ -0,0 +1,82 @@
+package bot.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.DaemonThreads;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time limit of the handling of a single update. Handler runs on the calling thread, a watchdog thread interrupts it
+ * if it is still running after the timeout.
+ * <p>
+ * Interruption is cooperative: it cancels the blocking calls the handler makes on its own thread (e.g. sending
+ * a reply), but work the handler hands over to other executors (location sharing pipeline, fan-out, outbox)
+ * does not belong to the update and carries on. As the handler never leaves the calling thread, the next update
+ * of the user can't start before the interrupted one has actually returned.
+ */
+final class UpdateTimeout {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateTimeout.class);
+
+    /**
+     * Interrupts the handling thread, unless the handling has already finished
+     */
+    private static final class Watch implements Runnable {
+        private final Thread thread;
+        private boolean running = true;
+
+        private Watch(Thread thread) {
+            this.thread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (running) {
+                logger.warn("Update handled by {} did not finish in time and is interrupted", thread.getName());
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Marks the handling as finished, the watch can't interrupt the thread after this returns
+         */
+        private synchronized void finish() {
+            running = false;
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor watchdog;
+    private final long timeoutMillis;
+
+    /**
+     * @param timeoutMillis time a single update has to be handled in
+     */
+    UpdateTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.watchdog = new ScheduledThreadPoolExecutor(1, DaemonThreads.named("update-watchdog"));
+        // most watches are cancelled, they should not wait in the queue until their deadline
+        this.watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs the handler on the calling thread, interrupting it after the timeout
+     */
+    void run(Runnable handler) {
+        Watch watch = new Watch(Thread.currentThread());
+        ScheduledFuture<?> deadline = watchdog.schedule(watch, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            handler.run();
+        } finally {
+            watch.finish();
+            deadline.cancel(false);
+            // interrupt of the watch was meant for this update only, the next one starts clean
+            Thread.interrupted();
+        }
+    }
+
+    void shutdown() {
+        watchdog.shutdownNow();
+    }
+}
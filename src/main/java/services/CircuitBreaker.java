@@ -0,0 +1,109 @@
+package services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker around calls to an unreliable backend. After {@code failureThreshold} consecutive failures
+ * the circuit opens and calls are rejected without reaching the backend. Once {@code openMillis} passed,
+ * a single probe call is let through: if it succeeds the circuit closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probeInFlight;
+
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param failureThreshold amount of consecutive failures that opens the circuit
+     * @param openMillis       time in milliseconds the circuit stays open before a probe call is allowed
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Failure threshold should be positive!");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    /**
+     * Asks for a permission to call the backend. Every granted permission has to be followed
+     * by {@code onSuccess()} or {@code onFailure()}.
+     *
+     * @return true if the call may be made, false if the circuit is open
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        boolean permitted = switch (state) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> !probeInFlight;
+        };
+        if (permitted && state == State.HALF_OPEN) {
+            probeInFlight = true;
+        }
+        if (!permitted) {
+            rejections.incrementAndGet();
+        }
+        return permitted;
+    }
+
+    public synchronized void onSuccess() {
+        successes.incrementAndGet();
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        failures.incrementAndGet();
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+        }
+        probeInFlight = false;
+    }
+
+    /**
+     * Returns the permission without reporting a result, for the calls that were not made or failed
+     * for reasons unrelated to the backend
+     */
+    public synchronized void onIgnored() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long successes() {
+        return successes.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long rejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CircuitBreaker[state=%s, successes=%d, failures=%d, rejections=%d]",
+                getState(), successes(), failures(), rejections());
+    }
+}
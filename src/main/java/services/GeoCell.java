@@ -0,0 +1,59 @@
+package services;
+
+/**
+ * Utility class that quantizes coordinates into geohash-like grid cells.
+ * Cell key is a bit interleaving of longitude and latitude (5 bits per precision level),
+ * so two coordinates that lie in the same cell get the same key.
+ * Precision 5 is a cell of roughly 5x5 km, which is more than enough to resolve a city.
+ */
+public class GeoCell {
+    public static final int MIN_PRECISION = 1;
+    public static final int MAX_PRECISION = 12;
+
+    private GeoCell() {
+    }
+
+    /**
+     * Returns key of the grid cell that contains the given coordinates.
+     *
+     * @param latitude  latitude of the point in degrees
+     * @param longitude longitude of the point in degrees
+     * @param precision amount of geohash characters the cell corresponds to, between
+     *                  {@code MIN_PRECISION} and {@code MAX_PRECISION}
+     * @return key of the cell, the precision is encoded in the key as well, so keys of different precisions never collide
+     * @throws IllegalArgumentException if precision is out of bounds
+     */
+    public static long encode(double latitude, double longitude, int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Cell precision should be between " + MIN_PRECISION
+                    + " and " + MAX_PRECISION + "!");
+        }
+        int bits = precision * 5;
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        long hash = 0;
+        // even bits are longitude, odd bits are latitude (same as geohash)
+        for (int i = 0; i < bits; i++) {
+            hash <<= 1;
+            if (i % 2 == 0) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    hash |= 1;
+                    minLng = mid;
+                } else {
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    hash |= 1;
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        // top 4 bits hold the precision
+        return ((long) precision << 60) | hash;
+    }
+}
@@ -0,0 +1,115 @@
+package services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of reverse geocoding results keyed by {@link GeoCell} keys.
+ * Least recently used entries are evicted when the cache is full, entries older than ttl are treated as missing.
+ */
+public class GeocodeCache {
+    private record Entry(LocationFinder.Location location, long expiresAtNanos) {
+    }
+
+    private final int precision;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param precision  precision of the cells used as keys, see {@link GeoCell#encode(double, double, int)}
+     * @param maxEntries maximum amount of cells stored in the cache
+     * @param ttlMillis  time in milliseconds after which the cached location has to be looked up again
+     */
+    public GeocodeCache(int precision, int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive!");
+        }
+        this.precision = precision;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        // access order -> iteration starts from the least recently used entry
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > GeocodeCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return key of the cell that contains given coordinates
+     */
+    public long cellOf(double latitude, double longitude) {
+        return GeoCell.encode(latitude, longitude, precision);
+    }
+
+    /**
+     * Returns cached location for the cell or {@code null} if there is none or it has expired
+     *
+     * @param cell key of the cell, see {@code cellOf()}
+     * @return cached location or {@code null}
+     */
+    public LocationFinder.Location get(long cell) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(cell);
+            if (entry != null && entry.expiresAtNanos() - System.nanoTime() <= 0) {
+                entries.remove(cell);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.location();
+    }
+
+    /**
+     * Stores location for the cell, replacing the previous one
+     *
+     * @param cell     key of the cell, see {@code cellOf()}
+     * @param location location that was resolved for the cell
+     */
+    public void put(long cell, LocationFinder.Location location) {
+        Entry entry = new Entry(location, System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            entries.put(cell, entry);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GeocodeCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), maxEntries, hits(), misses(), evictions());
+    }
+}
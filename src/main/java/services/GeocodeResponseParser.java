@@ -0,0 +1,131 @@
+package services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser of the Google Maps reverse geocoding responses. Only {@code address_components} of the results
+ * are read, no tree is built. Results of the response are ordered from the most specific to the least specific one,
+ * so city and country are taken from the first result that has them and parsing stops as soon as both were found.
+ * <p>
+ * Google Maps API reports errors (exceeded quota, rejected key) with HTTP 200 and an error {@code status}
+ * in the body, so the status is checked as well. {@code OK} and {@code ZERO_RESULTS} are the only successful ones.
+ */
+final class GeocodeResponseParser {
+    /**
+     * Google Maps API rejected the request itself ({@code REQUEST_DENIED}, {@code INVALID_REQUEST}), which is caused
+     * by the configuration (e.g. invalid api key) and not by the health of the API
+     */
+    static final class RequestRejectedException extends IOException {
+        RequestRejectedException(String message) {
+            super(message);
+        }
+    }
+
+
+    // factory is thread-safe, parsers it creates are not
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private GeocodeResponseParser() {
+    }
+
+    /**
+     * @param body body of the reverse geocoding response, is not closed by the parser
+     * @return city and country of the most specific results, {@link LocationFinder#UNKNOWN} for the ones not found
+     * @throws RequestRejectedException if the request was rejected by the API
+     * @throws IOException if body could not be read, is not a valid JSON or the API responded with an error status
+     */
+    static LocationFinder.Location parse(InputStream body) throws IOException {
+        String city = null;
+        String country = null;
+        String status = null;
+        String errorMessage = null;
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Geocoding response is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("status") && value == JsonToken.VALUE_STRING) {
+                    status = parser.getText();
+                    continue;
+                }
+                if (field.equals("error_message") && value == JsonToken.VALUE_STRING) {
+                    errorMessage = parser.getText();
+                    continue;
+                }
+                if (!field.equals("results") || value != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                // results
+                while ((city == null || country == null) && parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String resultField = parser.getCurrentName();
+                        JsonToken resultValue = parser.nextToken();
+                        if (!resultField.equals("address_components") || resultValue != JsonToken.START_ARRAY) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        // address components
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            String longName = null;
+                            boolean locality = false;
+                            boolean isCountry = false;
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String componentField = parser.getCurrentName();
+                                JsonToken componentValue = parser.nextToken();
+                                if (componentField.equals("long_name") && componentValue == JsonToken.VALUE_STRING) {
+                                    longName = parser.getText();
+                                } else if (componentField.equals("types") && componentValue == JsonToken.START_ARRAY) {
+                                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                                        String type = parser.getText();
+                                        locality |= type.equals("locality");
+                                        isCountry |= type.equals("country");
+                                    }
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                            if (longName != null && !longName.isEmpty()) {
+                                if (locality && city == null) {
+                                    city = longName;
+                                }
+                                if (isCountry && country == null) {
+                                    country = longName;
+                                }
+                            }
+                        }
+                    }
+                }
+                if (city != null && country != null) {
+                    // response has results, so its status is OK and the rest of it is not needed
+                    break;
+                }
+                // all results were read, status usually follows them
+            }
+        }
+        checkStatus(status, errorMessage);
+        return new LocationFinder.Location(country != null ? country : LocationFinder.UNKNOWN,
+                city != null ? city : LocationFinder.UNKNOWN);
+    }
+
+    private static void checkStatus(String status, String errorMessage) throws IOException {
+        // responses without status are accepted as before, the results of them are used
+        if (status == null || status.equals("OK") || status.equals("ZERO_RESULTS")) {
+            return;
+        }
+        String message = "Google Maps API responded with status " + status
+                + (errorMessage != null ? ": " + errorMessage : "");
+        if (status.equals("REQUEST_DENIED") || status.equals("INVALID_REQUEST")) {
+            throw new RequestRejectedException(message);
+        }
+        // OVER_QUERY_LIMIT, OVER_DAILY_LIMIT, UNKNOWN_ERROR and the statuses added later
+        throw new IOException(message);
+    }
+}
@@ -1,32 +1,83 @@
 package services;
 
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.stream.StreamSupport;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.maps.errors.ApiError;
 import exceptions.ApiKeyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import utils.ConfigLoader;
 
 public class LocationFinder {
+    private static final Logger logger = LoggerFactory.getLogger(LocationFinder.class);
+    private static volatile GeocodeCache cache;
+    // coarser cache that keeps locations longer, used only when Google Maps API is unavailable
+    private static volatile GeocodeCache fallbackCache;
+    private static volatile OfflineGeocoder offlineGeocoder;
+    private static volatile boolean offlineGeocoderInitialized;
+    private static volatile HttpClient httpClient;
+    private static volatile CircuitBreaker circuitBreaker;
+    // bulkhead, limits the amount of concurrent calls to Google Maps API
+    private static volatile Semaphore concurrentCalls;
+    private static final AtomicLong bulkheadRejections = new AtomicLong();
+    private static final AtomicLong degradedLookups = new AtomicLong();
+    // lookups in flight by cache cell
+    private static final SingleFlight<Long, Location> lookups = new SingleFlight<>();
+    // placeholder for the city/country that could not be resolved
+    static final String UNKNOWN = "N/A";
+    // how many times longer than the regular ones the fallback cache entries are kept
+    private static final int FALLBACK_TTL_FACTOR = 7;
+
     /**
      * Wrapper class around the location from Google Maps Service API
      * */
     public static class Location {
-        private String country;
-        private String city;
+        private final String country;
+        private final String city;
+        // raw coordinates, set only for the locations that could not be resolved
+        private final String coordinates;
 
         public Location(String country, String city) {
+            this(country, city, null);
+        }
+
+        private Location(String country, String city, String coordinates) {
             this.country = country;
             this.city = city;
+            this.coordinates = coordinates;
+        }
+
+        /**
+         * @return location that is represented by its raw coordinates, as it could not be resolved
+         */
+        static Location unresolved(double latitude, double longitude) {
+            return new Location(UNKNOWN, UNKNOWN, String.format(Locale.ROOT, "%.5f, %.5f", latitude, longitude));
+        }
+
+        /**
+         * @return false if the location could not be resolved and is represented by its coordinates
+         */
+        public boolean isResolved() {
+            return coordinates == null;
         }
 
         @Override
         public String toString() {
-            return String.format("%s, %s", city, country);
+            return coordinates != null ? coordinates : String.format("%s, %s", city, country);
         }
 
         public String country() {
@@ -39,33 +90,241 @@ public class LocationFinder {
     }
 
     /**
-     * Checks if the given node contains the specified type in its "types" array.
+     * Returns the reverse geocoding cache, creating it from the configuration on the first call
      *
-     * @param node the node to check
-     * @param type the type to search for
-     * @return true if the "types" array of the node contains the specified type, false otherwise
+     * @return cache of the resolved locations
+     * @throws IOException if configuration property parsing failed
      */
-    private static boolean containsType(JsonNode node, String type) {
-        JsonNode typesNode = node.path("types");
-        if (typesNode.isArray()) {
-            return StreamSupport.stream(typesNode.spliterator(), false)
-                    .anyMatch(n -> n.asText().equals(type));
+    public static GeocodeCache getCache() throws IOException {
+        GeocodeCache result = cache;
+        if (result == null) {
+            synchronized (LocationFinder.class) {
+                result = cache;
+                if (result == null) {
+                    int precision = ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.GEOCODE_CACHE_PRECISION, 5);
+                    int maxEntries = ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.GEOCODE_CACHE_MAX_ENTRIES, 10_000);
+                    int ttlMinutes = ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.GEOCODE_CACHE_TTL_MINUTES, 24 * 60);
+                    result = new GeocodeCache(precision, maxEntries, ttlMinutes * 60_000L);
+                    fallbackCache = new GeocodeCache(Math.max(1, precision - 1), maxEntries,
+                            FALLBACK_TTL_FACTOR * ttlMinutes * 60_000L);
+                    cache = result;
+                }
+            }
         }
-        return false;
+        return result;
     }
 
     /**
-     * Retrieves the city and country associated with the given latitude and longitude using the Google Maps API.
+     * Creates the HTTP client, circuit breaker and bulkhead used for Google Maps API from the configuration,
+     * if they were not created yet.
+     * Client is shared by all requests, so connections (and their TLS sessions) are pooled and kept alive,
+     * and requests are multiplexed over HTTP/2 when the server supports it.
+     *
+     * @throws IOException if configuration property parsing failed
+     */
+    private static void initGoogleBackend() throws IOException {
+        if (httpClient == null) {
+            synchronized (LocationFinder.class) {
+                if (httpClient == null) {
+                    ConfigLoader.Config config = ConfigLoader.getConfig();
+                    int connectTimeoutMillis = config.getInt(ConfigLoader.ConfigProperty.GEOCODER_CONNECT_TIMEOUT_MILLIS, 3000);
+                    circuitBreaker = new CircuitBreaker(
+                            config.getInt(ConfigLoader.ConfigProperty.GEOCODER_FAILURE_THRESHOLD, 5),
+                            config.getInt(ConfigLoader.ConfigProperty.GEOCODER_OPEN_SECONDS, 30) * 1000L);
+                    concurrentCalls = new Semaphore(config.getInt(ConfigLoader.ConfigProperty.GEOCODER_MAX_CONCURRENT_CALLS, 8));
+                    httpClient = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                            .build();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the offline geocoder if it was selected as a backend in configuration, loading its index on the first call
+     *
+     * @return offline geocoder, or {@code null} if it is disabled or its index could not be loaded
+     * @throws IOException if configuration property parsing failed
+     */
+    private static OfflineGeocoder getOfflineGeocoder() throws IOException {
+        if (!offlineGeocoderInitialized) {
+            synchronized (LocationFinder.class) {
+                if (!offlineGeocoderInitialized) {
+                    String backend = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.GEOCODER_BACKEND);
+                    if (backend.equalsIgnoreCase("offline")) {
+                        Path indexPath = Path.of(ConfigLoader.getProperty(ConfigLoader.ConfigProperty.OFFLINE_GEOCODER_INDEX));
+                        int maxDistanceKm =
+                                ConfigLoader.getIntProperty(ConfigLoader.ConfigProperty.OFFLINE_GEOCODER_MAX_DISTANCE_KM, 30);
+                        try {
+                            offlineGeocoder = new OfflineGeocoder(indexPath, maxDistanceKm);
+                            logger.info("Loaded offline geocoder index with {} cities", offlineGeocoder.size());
+                        } catch (IOException e) {
+                            logger.error("Loading offline geocoder index failed, using Google Maps API only! {}",
+                                    e.getMessage());
+                        }
+                    }
+                    offlineGeocoderInitialized = true;
+                }
+            }
+        }
+        return offlineGeocoder;
+    }
+
+    /**
+     * Retrieves the city and country associated with the given latitude and longitude.
+     * As only city and country are needed, locations are cached per grid cell (see {@link GeocodeCache}),
+     * so the Google Maps API is only called for the cells that were not resolved recently.
+     * If the offline backend is configured, the location is resolved locally and Google Maps API is only
+     * used when the local lookup is ambiguous.
+     * Google Maps API is called through a circuit breaker and a bulkhead. When it is failing, or too many calls
+     * are in flight, the location of a previously resolved surrounding area or the raw coordinates are returned
+     * (see {@link Location#isResolved()}), so a slow API does not block the sharing.
+     * Concurrent lookups of the same cell share a single lookup (see {@link #getLocationAsync}).
      *
      * @param latitude the latitude of the location to retrieve
      * @param longitude the longitude of the location to retrieve
-     * @return a Location record containing the country and city name associated with the given latitude and longitude, or null if the
-     *         city and country names could not be found
+     * @return a Location record containing the country and city name associated with the given latitude and longitude,
+     *         "N/A" is used for the city or country names that could not be found
      * @throws IOException if an error occurs while connecting to the Google Maps API
      * @throws ApiKeyException if Google Maps Service Api Key was not provided in config.properties
      */
     public static Location getLocation(double latitude, double longitude) throws IOException {
-        String apiKey = ConfigLoader.getProperty(ConfigLoader.ConfigProperty.GOOGLE_MAPS_API_KEY);
+        try {
+            // lookup is run by the calling thread, unless the same cell is already being resolved
+            return getLocationAsync(latitude, longitude, Runnable::run).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #getLocation}. Cached locations are returned immediately, otherwise
+     * the lookup is run on the {@code executor}. If the cell of the coordinates is already being resolved,
+     * no new lookup is started and the future of the lookup in flight is returned, so a burst of shares
+     * from the same place costs a single call to Google Maps API.
+     *
+     * @param latitude  the latitude of the location to retrieve
+     * @param longitude the longitude of the location to retrieve
+     * @param executor  executor the lookup is run on
+     * @return future of the location, completes exceptionally with {@link IOException} or {@link ApiKeyException}
+     *         (wrapped in {@link CompletionException}) if the lookup failed
+     */
+    public static CompletableFuture<Location> getLocationAsync(double latitude, double longitude, Executor executor) {
+        GeocodeCache locationCache;
+        try {
+            locationCache = getCache();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long cell = locationCache.cellOf(latitude, longitude);
+        Location location = locationCache.get(cell);
+        if (location != null) {
+            logger.debug("Location cache hit: {}", locationCache);
+            return CompletableFuture.completedFuture(location);
+        }
+        return lookups.run(cell, () -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return resolveLocation(locationCache, cell, latitude, longitude);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor));
+    }
+
+    private static Location resolveLocation(GeocodeCache locationCache, long cell, double latitude, double longitude)
+            throws IOException {
+        OfflineGeocoder localGeocoder = getOfflineGeocoder();
+        if (localGeocoder != null) {
+            Location location = localGeocoder.lookup(latitude, longitude);
+            if (location != null) {
+                locationCache.put(cell, location);
+                return location;
+            }
+            logger.debug("Offline lookup of {}, {} is ambiguous, falling back to Google Maps API", latitude, longitude);
+        }
+        initGoogleBackend();
+        if (!concurrentCalls.tryAcquire()) {
+            bulkheadRejections.incrementAndGet();
+            logger.warn("Too many concurrent calls to Google Maps API, sharing degraded location");
+            return degradedLocation(latitude, longitude);
+        }
+        try {
+            if (!circuitBreaker.tryAcquire()) {
+                return degradedLocation(latitude, longitude);
+            }
+            Location location;
+            try {
+                location = fetchLocation(latitude, longitude);
+                circuitBreaker.onSuccess();
+            } catch (InterruptedIOException | RuntimeException e) {
+                // interruption or missing api key say nothing about the health of the API
+                circuitBreaker.onIgnored();
+                throw e;
+            } catch (GeocodeResponseParser.RequestRejectedException e) {
+                // rejected requests are caused by the configuration, the API itself is fine
+                circuitBreaker.onIgnored();
+                logger.error("Google Maps API rejected the request, check {} in config! {}",
+                        ConfigLoader.ConfigProperty.GOOGLE_MAPS_API_KEY, e.getMessage());
+                return degradedLocation(latitude, longitude);
+            } catch (IOException e) {
+                circuitBreaker.onFailure();
+                logger.error("Google Maps API call failed, sharing degraded location! {}", e.getMessage());
+                return degradedLocation(latitude, longitude);
+            }
+            // partially resolved locations are not cached, as they might be caused by a flaky response
+            if (!location.city().equals(UNKNOWN) && !location.country().equals(UNKNOWN)) {
+                locationCache.put(cell, location);
+                fallbackCache.put(fallbackCache.cellOf(latitude, longitude), location);
+            }
+            return location;
+        } finally {
+            concurrentCalls.release();
+        }
+    }
+
+    /**
+     * Returns location for the coordinates when Google Maps API can't be used: location of the surrounding
+     * coarser cell if it was resolved before, otherwise the raw coordinates
+     */
+    private static Location degradedLocation(double latitude, double longitude) {
+        degradedLookups.incrementAndGet();
+        Location nearby = fallbackCache.get(fallbackCache.cellOf(latitude, longitude));
+        return nearby != null ? nearby : Location.unresolved(latitude, longitude);
+    }
+
+    /**
+     * @return human-readable state of the geocoding: caches, circuit breaker and bulkhead
+     */
+    public static String getStats() {
+        CircuitBreaker breaker = circuitBreaker;
+        Semaphore calls = concurrentCalls;
+        return String.format("%s%n%s%n%s%nConcurrent calls available: %s, bulkhead rejections: %d%n"
+                        + "Degraded lookups: %d, lookups in flight: %d",
+                cache, fallbackCache, breaker != null ? breaker : "CircuitBreaker[not initialized]",
+                calls != null ? calls.availablePermits() : "-", bulkheadRejections.get(), degradedLookups.get(),
+                lookups.inFlight());
+    }
+
+    /**
+     * Retrieves the city and country associated with the given latitude and longitude using the Google Maps API.
+     *
+     * @param latitude the latitude of the location to retrieve
+     * @param longitude the longitude of the location to retrieve
+     * @return a Location record containing the country and city name associated with the given latitude and longitude
+     * @throws IOException if an error occurs while connecting to the Google Maps API or it responded with an error status
+     * @throws ApiKeyException if Google Maps Service Api Key was not provided in config.properties
+     */
+    private static Location fetchLocation(double latitude, double longitude) throws IOException {
+        ConfigLoader.Config config = ConfigLoader.getConfig();
+        String apiKey = config.getString(ConfigLoader.ConfigProperty.GOOGLE_MAPS_API_KEY);
         if (apiKey.isEmpty()) {
             throw new ApiKeyException(ConfigLoader.ConfigProperty.GOOGLE_MAPS_API_KEY
                     + " was not provided in config!");
@@ -75,33 +334,22 @@ public class LocationFinder {
                 + latitude + "," + longitude
                 + "&key=" + apiKey;
 
-        // Connect to the Google Maps API and retrieve the response as a string
-        URLConnection connection = new URL(url).openConnection();
-        connection.connect();
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode rootNode = objectMapper.readTree(connection.getInputStream());
-
-        String resultCity = "N/A";
-        String resultCountry = "N/A";
-        // Iterate over all results to find the first one that contains a locality and country
-        JsonNode resultsNode = rootNode.path("results");
-        for (JsonNode resultNode : resultsNode) {
-            JsonNode addressComponentsNode = resultNode.path("address_components");
-            String city = StreamSupport.stream(addressComponentsNode.spliterator(), false)
-                    .filter(n -> containsType(n, "locality"))
-                    .findFirst()
-                    .map(n -> n.path("long_name").asText())
-                    .orElse("");
-            resultCity = !city.isEmpty() ? city : resultCity;
-            String country = StreamSupport.stream(addressComponentsNode.spliterator(), false)
-                    .filter(n -> containsType(n, "country"))
-                    .findFirst()
-                    .map(n -> n.path("long_name").asText())
-                    .orElse("");
-            resultCountry = !country.isEmpty() ? country : resultCountry;
-        }
-
-        // Return null if the city and country names could not be found
-        return new Location(resultCountry, resultCity);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofMillis(config.getInt(ConfigLoader.ConfigProperty.GEOCODER_READ_TIMEOUT_MILLIS, 5000)))
+                .GET()
+                .build();
+        try {
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            // body is always closed, so the connection is returned to the pool
+            try (InputStream body = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("Google Maps API responded with status " + response.statusCode());
+                }
+                return GeocodeResponseParser.parse(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to Google Maps API was interrupted");
+        }
     }
 }
@@ -0,0 +1,175 @@
+package services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reverse geocoder that resolves coordinates locally from a prebuilt city index
+ * (see {@link OfflineIndexBuilder} for the format of the index).
+ * Index file is memory-mapped and queried directly as an implicit k-d tree, nothing is copied on the heap.
+ */
+public class OfflineGeocoder {
+    static final int MAGIC = 0x47504958; // "GPIX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+
+    // amount of neighbours that are checked to decide if lookup is ambiguous
+    private static final int NEIGHBOURS = 8;
+    // if closest city of another country is not this much further than the nearest city, lookup is ambiguous
+    private static final double AMBIGUITY_RATIO = 1.25;
+    private static final double KM_PER_DEGREE = 111.195;
+
+    private final MappedByteBuffer index;
+    private final int count;
+    private final int stringsOffset;
+    private final double maxDistanceKm;
+
+    /**
+     * @param indexPath     path to the index file built by {@link OfflineIndexBuilder}
+     * @param maxDistanceKm max distance to the nearest known city, further coordinates can not be resolved locally
+     * @throws IOException if index could not be read or has invalid format
+     */
+    public OfflineGeocoder(Path indexPath, double maxDistanceKm) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC) {
+            throw new IOException("File " + indexPath + " is not a geocoder index!");
+        }
+        if (index.getInt(4) != VERSION) {
+            throw new IOException("Unsupported geocoder index version " + index.getInt(4) + "!");
+        }
+        count = index.getInt(8);
+        stringsOffset = index.getInt(12);
+        this.maxDistanceKm = maxDistanceKm;
+    }
+
+    /**
+     * Keeps k nearest records found so far sorted by distance
+     */
+    private static final class Neighbours {
+        final int[] records = new int[NEIGHBOURS];
+        final double[] distances = new double[NEIGHBOURS];
+        int size;
+
+        double worst() {
+            return size < NEIGHBOURS ? Double.MAX_VALUE : distances[size - 1];
+        }
+
+        void offer(int record, double distance) {
+            if (distance >= worst()) {
+                return;
+            }
+            int i = size < NEIGHBOURS ? size++ : size - 1;
+            while (i > 0 && distances[i - 1] > distance) {
+                records[i] = records[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            records[i] = record;
+            distances[i] = distance;
+        }
+    }
+
+    /**
+     * Resolves the city and country of the given coordinates
+     *
+     * @param latitude  the latitude of the location to resolve
+     * @param longitude the longitude of the location to resolve
+     * @return resolved location, or {@code null} if the lookup is ambiguous (point is too far from any known city
+     * or cities of different countries are about equally close) and should be resolved by another geocoder
+     */
+    public LocationFinder.Location lookup(double latitude, double longitude) {
+        if (count == 0) {
+            return null;
+        }
+        // equirectangular approximation, longitude differences are scaled to the latitude of the query
+        double lngScale = Math.cos(Math.toRadians(latitude));
+        Neighbours neighbours = new Neighbours();
+        search(0, count, 0, latitude, longitude, lngScale, neighbours);
+
+        int nearest = neighbours.records[0];
+        double nearestKm = Math.sqrt(neighbours.distances[0]) * KM_PER_DEGREE;
+        if (nearestKm > maxDistanceKm) {
+            return null;
+        }
+        int country = countryOffset(nearest);
+        for (int i = 1; i < neighbours.size; i++) {
+            double km = Math.sqrt(neighbours.distances[i]) * KM_PER_DEGREE;
+            if (km > nearestKm * AMBIGUITY_RATIO) {
+                break;
+            }
+            if (countryOffset(neighbours.records[i]) != country) {
+                // close to the border, can't tell the country without boundaries
+                return null;
+            }
+        }
+        return new LocationFinder.Location(readString(country), readString(cityOffset(nearest)));
+    }
+
+    /**
+     * Nearest neighbour search over the implicit k-d tree stored in records {@code [from, to)}.
+     * Median of the range is the node, left half is the lower subtree, right half is the upper subtree.
+     */
+    private void search(int from, int to, int depth, double latitude, double longitude, double lngScale,
+                        Neighbours neighbours) {
+        if (from >= to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        double dLat = latitude - latitude(mid);
+        double dLng = (longitude - longitude(mid)) * lngScale;
+        neighbours.offer(mid, dLat * dLat + dLng * dLng);
+
+        double diff = depth % 2 == 0 ? dLat : dLng;
+        if (diff < 0) {
+            search(from, mid, depth + 1, latitude, longitude, lngScale, neighbours);
+            if (diff * diff < neighbours.worst()) {
+                search(mid + 1, to, depth + 1, latitude, longitude, lngScale, neighbours);
+            }
+        } else {
+            search(mid + 1, to, depth + 1, latitude, longitude, lngScale, neighbours);
+            if (diff * diff < neighbours.worst()) {
+                search(from, mid, depth + 1, latitude, longitude, lngScale, neighbours);
+            }
+        }
+    }
+
+    private double latitude(int record) {
+        return index.getFloat(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    private double longitude(int record) {
+        return index.getFloat(HEADER_SIZE + record * RECORD_SIZE + 4);
+    }
+
+    private int cityOffset(int record) {
+        return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 8);
+    }
+
+    private int countryOffset(int record) {
+        return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 12);
+    }
+
+    /**
+     * Reads string from the string table of the index (unsigned short length followed by UTF-8 bytes)
+     */
+    private String readString(int offset) {
+        ByteBuffer buffer = index;
+        int position = stringsOffset + offset;
+        int length = Short.toUnsignedInt(buffer.getShort(position));
+        byte[] bytes = new byte[length];
+        buffer.get(position + 2, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return count;
+    }
+}
@@ -0,0 +1,141 @@
+package services;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Builds the binary index used by {@link OfflineGeocoder} from the GeoNames dumps
+ * (<a href="https://download.geonames.org/export/dump/">download.geonames.org/export/dump</a>).
+ * <p>
+ * Usage: {@code OfflineIndexBuilder <cities15000.txt> <countryInfo.txt> <output index>}
+ * <p>
+ * Index format (big endian):
+ * <pre>
+ * header:  int magic, int version, int record count, int offset of the string table
+ * records: float latitude, float longitude, int city name offset, int country name offset
+ * strings: unsigned short length, UTF-8 bytes
+ * </pre>
+ * Records are stored as an implicit k-d tree: the median of every range is the node that splits it,
+ * alternating between latitude and longitude on every level.
+ */
+public class OfflineIndexBuilder {
+    private record City(float latitude, float longitude, String name, String country) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: OfflineIndexBuilder <cities.txt> <countryInfo.txt> <output index>");
+            System.exit(1);
+        }
+        Map<String, String> countries = readCountries(Path.of(args[1]));
+        List<City> cities = readCities(Path.of(args[0]), countries);
+        write(cities, Path.of(args[2]));
+        System.out.printf("Indexed %d cities into %s%n", cities.size(), args[2]);
+    }
+
+    /**
+     * @return map of ISO country code to the country name
+     */
+    private static Map<String, String> readCountries(Path path) throws IOException {
+        Map<String, String> countries = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split("\t");
+                // ISO, ISO3, ISO-Numeric, fips, Country, ...
+                countries.put(columns[0], columns[4]);
+            }
+        }
+        return countries;
+    }
+
+    private static List<City> readCities(Path path, Map<String, String> countries) throws IOException {
+        List<City> cities = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                // geonameid, name, asciiname, alternatenames, latitude, longitude, feature class, feature code, country code
+                String country = countries.get(columns[8]);
+                if (country == null) {
+                    continue;
+                }
+                cities.add(new City(Float.parseFloat(columns[4]), Float.parseFloat(columns[5]), columns[1], country));
+            }
+        }
+        return cities;
+    }
+
+    /**
+     * Reorders {@code cities[from, to)} into an implicit k-d tree
+     */
+    private static void buildTree(List<City> cities, int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        Comparator<City> comparator = depth % 2 == 0
+                ? Comparator.comparingDouble(City::latitude)
+                : Comparator.comparingDouble(City::longitude);
+        cities.subList(from, to).sort(comparator);
+        int mid = (from + to) >>> 1;
+        buildTree(cities, from, mid, depth + 1);
+        buildTree(cities, mid + 1, to, depth + 1);
+    }
+
+    private static void write(List<City> cities, Path output) throws IOException {
+        buildTree(cities, 0, cities.size(), 0);
+
+        // string table with deduplicated names (country names repeat a lot)
+        Map<String, Integer> stringOffsets = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int stringsSize = 0;
+        int[][] offsets = new int[cities.size()][2];
+        for (int i = 0; i < cities.size(); i++) {
+            City city = cities.get(i);
+            String[] names = {city.name(), city.country()};
+            for (int j = 0; j < names.length; j++) {
+                Integer offset = stringOffsets.get(names[j]);
+                if (offset == null) {
+                    byte[] bytes = names[j].getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 0xFFFF) {
+                        throw new IOException("Name is too long: " + names[j]);
+                    }
+                    offset = stringsSize;
+                    stringOffsets.put(names[j], offset);
+                    strings.add(bytes);
+                    stringsSize += 2 + bytes.length;
+                }
+                offsets[i][j] = offset;
+            }
+        }
+
+        try (OutputStream fileStream = Files.newOutputStream(output);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            out.writeInt(OfflineGeocoder.MAGIC);
+            out.writeInt(OfflineGeocoder.VERSION);
+            out.writeInt(cities.size());
+            out.writeInt(OfflineGeocoder.HEADER_SIZE + cities.size() * OfflineGeocoder.RECORD_SIZE);
+            for (int i = 0; i < cities.size(); i++) {
+                City city = cities.get(i);
+                out.writeFloat(city.latitude());
+                out.writeFloat(city.longitude());
+                out.writeInt(offsets[i][0]);
+                out.writeInt(offsets[i][1]);
+            }
+            for (byte[] bytes : strings) {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package services;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key into a single call. While a call for a key is in flight,
+ * every other caller of the same key gets the future of that call instead of starting its own.
+ * Once the call completes, the key is forgotten, so the next caller starts a new call.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param key  key of the call
+     * @param call starts the call, is invoked only if there is no call with the same key in flight
+     * @return future of the call in flight for the key
+     */
+    public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            call.get().whenComplete((result, throwable) -> {
+                inFlight.remove(key, flight);
+                if (throwable != null) {
+                    flight.completeExceptionally(throwable);
+                } else {
+                    flight.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight;
+    }
+
+    /**
+     * @return amount of calls in flight
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
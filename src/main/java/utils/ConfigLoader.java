@@ -1,9 +1,17 @@
 package utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.validation.constraints.NotNull;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ConfigLoader {
     /**
@@ -13,7 +21,48 @@ public class ConfigLoader {
         GOOGLE_MAPS_API_KEY("GOOGLE_MAPS_API_KEY"),
         TELEGRAM_BOT_API_KEY("TELEGRAM_BOT_API_KEY"),
         TELEGRAM_BOT_USERNAME("TELEGRAM_BOT_USERNAME"),
-        TELEGRAM_BOT_CREATOR_ID("TELEGRAM_BOT_CREATOR_ID");
+        TELEGRAM_BOT_CREATOR_ID("TELEGRAM_BOT_CREATOR_ID"),
+        CALLBACK_SECRET("CALLBACK_SECRET"),
+        GEOCODE_CACHE_PRECISION("GEOCODE_CACHE_PRECISION"),
+        GEOCODE_CACHE_MAX_ENTRIES("GEOCODE_CACHE_MAX_ENTRIES"),
+        GEOCODE_CACHE_TTL_MINUTES("GEOCODE_CACHE_TTL_MINUTES"),
+        GEOCODER_BACKEND("GEOCODER_BACKEND"),
+        OFFLINE_GEOCODER_INDEX("OFFLINE_GEOCODER_INDEX"),
+        OFFLINE_GEOCODER_MAX_DISTANCE_KM("OFFLINE_GEOCODER_MAX_DISTANCE_KM"),
+        GEOCODER_CONNECT_TIMEOUT_MILLIS("GEOCODER_CONNECT_TIMEOUT_MILLIS"),
+        GEOCODER_READ_TIMEOUT_MILLIS("GEOCODER_READ_TIMEOUT_MILLIS"),
+        GEOCODER_MAX_CONCURRENT_CALLS("GEOCODER_MAX_CONCURRENT_CALLS"),
+        GEOCODER_FAILURE_THRESHOLD("GEOCODER_FAILURE_THRESHOLD"),
+        GEOCODER_OPEN_SECONDS("GEOCODER_OPEN_SECONDS"),
+        GEOCODE_THREADS("GEOCODE_THREADS"),
+        DELIVERY_THREADS("DELIVERY_THREADS"),
+        TELEGRAM_GLOBAL_RATE_LIMIT("TELEGRAM_GLOBAL_RATE_LIMIT"),
+        TELEGRAM_PER_CHAT_RATE_LIMIT("TELEGRAM_PER_CHAT_RATE_LIMIT"),
+        UPDATES_RECEIVER("UPDATES_RECEIVER"),
+        WEBHOOK_URL("WEBHOOK_URL"),
+        WEBHOOK_PORT("WEBHOOK_PORT"),
+        WEBHOOK_SECRET("WEBHOOK_SECRET"),
+        WEBHOOK_QUEUE_CAPACITY("WEBHOOK_QUEUE_CAPACITY"),
+        WEBHOOK_MAX_CONNECTIONS("WEBHOOK_MAX_CONNECTIONS"),
+        THREAD_MODE("THREAD_MODE"),
+        UPDATE_LANES("UPDATE_LANES"),
+        UPDATE_LANE_CAPACITY("UPDATE_LANE_CAPACITY"),
+        UPDATE_TIMEOUT_SECONDS("UPDATE_TIMEOUT_SECONDS"),
+        OUTBOX_THREADS("OUTBOX_THREADS"),
+        OUTBOX_MAX_ATTEMPTS("OUTBOX_MAX_ATTEMPTS"),
+        OUTBOX_MAX_BACKOFF_SECONDS("OUTBOX_MAX_BACKOFF_SECONDS"),
+        LIVE_LOCATION_MIN_DISTANCE_METERS("LIVE_LOCATION_MIN_DISTANCE_METERS"),
+        LIVE_LOCATION_MIN_INTERVAL_SECONDS("LIVE_LOCATION_MIN_INTERVAL_SECONDS"),
+        LIVE_LOCATION_EDITS_PER_SECOND("LIVE_LOCATION_EDITS_PER_SECOND"),
+        FRIEND_REQUEST_FLOW_TTL_MINUTES("FRIEND_REQUEST_FLOW_TTL_MINUTES"),
+        FRIEND_REQUEST_FLOW_MAX_SIZE("FRIEND_REQUEST_FLOW_MAX_SIZE"),
+        PENDING_FRIEND_REQUEST_TTL_DAYS("PENDING_FRIEND_REQUEST_TTL_DAYS"),
+        PENDING_FRIEND_REQUEST_MAX_SIZE("PENDING_FRIEND_REQUEST_MAX_SIZE"),
+        FRIEND_LIST_CACHE_SIZE("FRIEND_LIST_CACHE_SIZE"),
+        STORAGE_BACKEND("STORAGE_BACKEND"),
+        STORAGE_DIRECTORY("STORAGE_DIRECTORY"),
+        STORAGE_SNAPSHOT_INTERVAL_MINUTES("STORAGE_SNAPSHOT_INTERVAL_MINUTES"),
+        STORAGE_CACHE_SIZE("STORAGE_CACHE_SIZE");
 
         private final String text;
 
@@ -33,22 +82,152 @@ public class ConfigLoader {
         }
     }
 
+    /**
+     * Immutable snapshot of the config file. Snapshot never changes, reloaded config is a new snapshot.
+     */
+    public static final class Config {
+        private final Map<String, String> properties;
+
+        private Config(Properties properties) {
+            Map<String, String> copy = new HashMap<>();
+            for (String name : properties.stringPropertyNames()) {
+                copy.put(name, properties.getProperty(name));
+            }
+            this.properties = Collections.unmodifiableMap(copy);
+        }
+
+        /**
+         * @return String value of the property. Never {@code null}. Returns empty string if such property was not set
+         */
+        public String getString(@NotNull ConfigProperty key) {
+            return properties.getOrDefault(key.toString(), "");
+        }
+
+        /**
+         * @return int value of the property or {@code defaultValue} if property was not set
+         * @throws NumberFormatException if property is set, but is not a valid int
+         */
+        public int getInt(@NotNull ConfigProperty key, int defaultValue) {
+            String value = getString(key).trim();
+            return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+        }
+    }
+
     public static final String configPath = "src/main/resources/config.properties";
 
+    private static final Logger logger = LoggerFactory.getLogger(ConfigLoader.class);
+    // events of a single save usually come in bursts, file is reloaded once they settle
+    private static final long RELOAD_DELAY_MILLIS = 200;
+    private static final AtomicReference<Config> config = new AtomicReference<>();
+
     /**
-     * Returns String property from the config file located at {@code ConfigLoader.configPath}
+     * Returns current snapshot of the config file located at {@code ConfigLoader.configPath}.
+     * File is read once, then it is watched for changes and every change replaces the snapshot,
+     * so the returned snapshot should not be kept for long.
+     * <p>
+     * A change only takes effect for the properties that are read on every use, which are currently
+     * {@code GOOGLE_MAPS_API_KEY} and {@code GEOCODER_READ_TIMEOUT_MILLIS}. All other properties are read once
+     * when the component using them is created (thread pools, caches, rate limits, storage) and need a restart.
      *
-     * @param key ConfigProperty that needs to be parsed from properties
-     * @return String value of the property. Never {@code null}. Returns empty string if such property was not config
+     * @return current config snapshot
      * @throws IOException if there was no config file, or it's reading failed
-     * */
-    public static String getProperty(@NotNull ConfigProperty key) throws IOException {
+     */
+    public static Config getConfig() throws IOException {
+        Config current = config.get();
+        if (current != null) {
+            return current;
+        }
+        synchronized (ConfigLoader.class) {
+            if (config.get() == null) {
+                config.set(load());
+                startWatching();
+            }
+            return config.get();
+        }
+    }
+
+    private static Config load() throws IOException {
         Properties configProperties = new Properties();
-        try {
-            configProperties.load(new FileInputStream(configPath));
+        try (FileInputStream in = new FileInputStream(configPath)) {
+            configProperties.load(in);
         } catch (IOException e) {
             throw new IOException(e.getMessage() + "\nConfig file should be located under " + configPath + "!");
         }
-        return configProperties.getProperty(key.toString(), "");
+        return new Config(configProperties);
+    }
+
+    /**
+     * Starts a daemon thread that reloads the config whenever the file is changed. If the changed file
+     * can't be read, the previous snapshot is kept.
+     */
+    private static void startWatching() {
+        Path file = Path.of(configPath).toAbsolutePath();
+        WatchService watchService;
+        try {
+            watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.warn("Could not watch {} for changes, config will not be reloaded! {}", file, e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    if (changed) {
+                        Thread.sleep(RELOAD_DELAY_MILLIS);
+                        // drops events of the same save that came during the delay
+                        key.pollEvents();
+                        reload();
+                    }
+                    if (!key.reset()) {
+                        logger.warn("Config directory is no longer accessible, config will not be reloaded!");
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void reload() {
+        try {
+            config.set(load());
+            logger.info("Reloaded config from {}", configPath);
+        } catch (IOException e) {
+            logger.error("Reloading config failed, keeping the previous one! {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns String property from the current config snapshot (see {@link #getConfig()})
+     *
+     * @param key ConfigProperty that needs to be parsed from properties
+     * @return String value of the property. Never {@code null}. Returns empty string if such property was not config
+     * @throws IOException if there was no config file, or it's reading failed
+     * */
+    public static String getProperty(@NotNull ConfigProperty key) throws IOException {
+        return getConfig().getString(key);
+    }
+
+    /**
+     * Returns int property from the current config snapshot (see {@link #getConfig()})
+     *
+     * @param key ConfigProperty that needs to be parsed from properties
+     * @param defaultValue value that is returned if the property was not set in config
+     * @return int value of the property or {@code defaultValue} if property was not set
+     * @throws IOException if there was no config file, or it's reading failed
+     * @throws NumberFormatException if property is set, but is not a valid int
+     * */
+    public static int getIntProperty(@NotNull ConfigProperty key, int defaultValue) throws IOException {
+        return getConfig().getInt(key, defaultValue);
     }
 }
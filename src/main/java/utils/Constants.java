@@ -29,10 +29,6 @@ public interface Constants {
         String SEND = "Send✅";
         String ACCEPT = "Accept✅";
         String DECLINE = "Decline❌";
-
-        // simple callbacks, don't need factory class (although can be done in the next releases :))
-        String CONFIRM_CALLBACK_QUERY = "confirm";
-        String ABORT_CALLBACK_QUERY = "abort";
     }
 
     interface RemoveFriendConstants {
@@ -0,0 +1,24 @@
+package utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories for the background threads of the bot, which should never keep the application running.
+ */
+public final class DaemonThreads {
+    private DaemonThreads() {
+    }
+
+    /**
+     * @return thread factory creating daemon threads named {@code prefix-n}
+     */
+    public static ThreadFactory named(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}